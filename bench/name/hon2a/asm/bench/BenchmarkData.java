@@ -0,0 +1,106 @@
+package name.hon2a.asm.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import name.hon2a.asm.Utils;
+
+/**
+ * Generator of submission-like benchmark data.
+ *
+ * Data are generated from fixed seed, so that all benchmark runs work with
+ * the same input.
+ *
+ * @author %hon2a
+ */
+public final class BenchmarkData {
+
+	private static final String[] NAMES = { "library", "book", "author", "title", "isbn", "note" }; ///< element names
+	private static final String[] WORDS = { "lorem", "ipsum", "dolor", "sit", "amet", "&amp;", "<", "\"x\"" }; ///< text words
+
+	/// XQuery queries over documents from BenchmarkData::createXml() (together covering all required constructs)
+	private static final String[] QUERIES = {
+		"(: books longer than average :)\n"
+			+ "<long>{\n"
+			+ "  for $b in /library/book\n"
+			+ "  where string-length($b) > avg(for $x in /library/book return string-length($x)) (: avg in where :)\n"
+			+ "  return <book id=\"{$b/@id}\"/>\n"
+			+ "}</long>\n",
+		"(: all titles non-empty? :)\n"
+			+ "<check>{\n"
+			+ "  if (every $t in //title satisfies string-length($t) > 0)\n"
+			+ "  then \"ok\" else \"empty title found\"\n"
+			+ "}</check>\n",
+		"(: distinct words in notes :)\n"
+			+ "<words>{\n"
+			+ "  for $w in distinct-values(for $n in //note return tokenize(normalize-space($n), ' '))\n"
+			+ "  order by $w (: alphabetically :)\n"
+			+ "  return <word count=\"{count(//note[contains(., $w)])}\">{$w}</word>\n"
+			+ "}</words>\n"
+	};
+
+	/**
+	 * Static class.
+	 */
+	private BenchmarkData () {
+	}
+
+	/**
+	 * Generate XML document of approximately given size.
+	 *
+	 * Document consists of nested elements with attributes and text on multiple
+	 * lines (similar to XML files submitted by students).
+	 *
+	 * @param size minimum document size (in characters)
+	 * @return XML document text.
+	 */
+	public static String createXml (int size) {
+		Random random = new Random(size);
+		StringBuilder xml = new StringBuilder(size + 256);
+		xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<library>\n");
+		int id = 0;
+		while (xml.length() < size) {
+			String name = NAMES[1 + random.nextInt(NAMES.length - 1)];
+			xml.append("\t<").append(name).append(" id=\"e").append(id++).append("\">");
+			int wordCount = 1 + random.nextInt(12);
+			for (int i = 0; i < wordCount; ++i) {
+				String word = WORDS[random.nextInt(WORDS.length)];
+				xml.append(word.equals("<") ? "&lt;" : word).append(' ');
+			}
+			xml.append("</").append(name).append(">\n");
+		}
+		xml.append("</library>\n");
+		return xml.toString();
+	}
+
+	/**
+	 * Retrieve XQuery queries over generated documents (including comments).
+	 *
+	 * @return Query texts.
+	 * @see BenchmarkData::createXml()
+	 */
+	public static String[] getQueries () {
+		return QUERIES.clone();
+	}
+
+	/**
+	 * Create folder with XML files (half of them in subfolder).
+	 *
+	 * @param folder folder to be created
+	 * @param fileCount number of files
+	 * @param totalSize total size of all files (in characters)
+	 * @throws IOException in case files cannot be written
+	 */
+	public static void createFolder (File folder, int fileCount, int totalSize) throws IOException {
+		File subfolder = new File(folder, "sub");
+		if (!subfolder.mkdirs()) {
+			throw new IOException("Folder cannot be created: " + subfolder.getAbsolutePath());
+		}
+		for (int i = 0; i < fileCount; ++i) {
+			File file = new File((i % 2 == 0) ? folder : subfolder, "file" + i + ".xml");
+			String contents = createXml(Math.max(1, totalSize / fileCount));
+			Utils.saveBinaryFile(file, new ByteArrayInputStream(contents.getBytes("UTF-8")));
+		}
+	}
+}
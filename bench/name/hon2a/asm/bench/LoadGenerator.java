@@ -0,0 +1,339 @@
+package name.hon2a.asm.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import name.hon2a.asm.PluginFactory;
+import name.hon2a.asm.Utils;
+
+/**
+ * End-to-end load test of plugin with synthetic submissions.
+ *
+ * Usage:
+ * @code
+ * java -cp ... name.hon2a.asm.bench.LoadGenerator PLUGIN_CLASS [-kind domsax|xquery] [-rate PER_SECOND]
+ *		[-duration SECONDS] [-threads COUNT] [-submissions COUNT] [-size CHARS] [-queries COUNT]
+ *		[-failures FRACTION] [-warmup COUNT] [PLUGIN_PARAMS...]
+ * @endcode
+ *
+ * Generates pool of submissions (see SubmissionGenerator), @c FRACTION of them
+ * broken in various ways, and grades them in round-robin fashion by fresh plugin
+ * instances (see PluginFactory) at target rate. Requests are issued on fixed
+ * schedule regardless of how fast previous requests finished and latency is
+ * measured from scheduled start, so that queueing delay of overloaded grader
+ * is included in reported latencies.
+ *
+ * Report contains latency percentiles, achieved throughput, counts of passed,
+ * failed and erroneous responses (and responses not matching generated
+ * submissions), and peak resident set size of JVM (peak heap usage on systems
+ * without @c /proc ).
+ *
+ * @author %hon2a
+ */
+public class LoadGenerator {
+
+	private final PluginFactory factory; ///< factory for plugin instances
+	private final String[] params; ///< additional plugin arguments
+	private final int threadCount; ///< worker pool size
+
+	/**
+	 * Default and only constructor.
+	 *
+	 * @param factory factory for plugin instances
+	 * @param params additional plugin arguments passed after submission path
+	 * @param threadCount worker pool size
+	 */
+	public LoadGenerator (PluginFactory factory, String[] params, int threadCount) {
+		this.factory = factory;
+		this.params = params;
+		this.threadCount = threadCount;
+	}
+
+	/**
+	 * Run load test.
+	 *
+	 * @param args command line arguments (see class description)
+	 */
+	public static void main (String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: LoadGenerator PLUGIN_CLASS [-kind domsax|xquery] [-rate PER_SECOND]"
+					+ " [-duration SECONDS] [-threads COUNT] [-submissions COUNT] [-size CHARS] [-queries COUNT]"
+					+ " [-failures FRACTION] [-warmup COUNT] [PLUGIN_PARAMS...]");
+			System.exit(1);
+		}
+
+		SubmissionGenerator.Kind kind = args[0].contains("xquery")
+				? SubmissionGenerator.Kind.XQUERY
+				: SubmissionGenerator.Kind.DOMSAX;
+		double rate = 2;
+		int duration = 30;
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		int submissionCount = 20;
+		int size = 16 * 1024;
+		int queryCount = 5;
+		double failures = 0.2;
+		int warmupCount = 10;
+		List<String> params = new ArrayList<String>();
+		for (int i = 1; i < args.length; ++i) {
+			boolean hasValue = (i + 1 < args.length);
+			if (args[i].equals("-kind") && hasValue) {
+				kind = SubmissionGenerator.Kind.valueOf(args[++i].toUpperCase());
+			} else if (args[i].equals("-rate") && hasValue) {
+				rate = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-duration") && hasValue) {
+				duration = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-threads") && hasValue) {
+				threadCount = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-submissions") && hasValue) {
+				submissionCount = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-size") && hasValue) {
+				size = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-queries") && hasValue) {
+				queryCount = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-failures") && hasValue) {
+				failures = Double.parseDouble(args[++i]);
+			} else if (args[i].equals("-warmup") && hasValue) {
+				warmupCount = Integer.parseInt(args[++i]);
+			} else {
+				params.add(args[i]);
+			}
+		}
+
+		// tests redirect standard streams while running (and may leave them redirected when run concurrently)
+		PrintStream out = System.out;
+		PrintStream err = System.err;
+		File folder = null;
+		try {
+			folder = Utils.createTempDirectory();
+			List<File> submissions = new ArrayList<File>();
+			List<SubmissionGenerator.Defect> defects = new ArrayList<SubmissionGenerator.Defect>();
+			SubmissionGenerator.Defect[] brokenTypes = Arrays.copyOfRange(SubmissionGenerator.Defect.values(), 1,
+					SubmissionGenerator.Defect.values().length);
+			int brokenCount = (int) Math.round(submissionCount * failures);
+			for (int i = 0; i < submissionCount; ++i) {
+				// spread broken submissions evenly over the pool
+				boolean broken = ((i + 1) * brokenCount / submissionCount) > (i * brokenCount / submissionCount);
+				SubmissionGenerator.Defect defect = broken
+						? brokenTypes[(i * brokenCount / submissionCount) % brokenTypes.length]
+						: SubmissionGenerator.Defect.NONE;
+				File submission = new File(folder, String.format("submission%03d.zip", i));
+				SubmissionGenerator.generate(submission, kind, defect, size, queryCount, i);
+				submissions.add(submission);
+				defects.add(defect);
+			}
+
+			LoadGenerator generator = new LoadGenerator(new PluginFactory(args[0]),
+					params.toArray(new String[] {}), threadCount);
+			for (int i = 0; i < warmupCount; ++i) {
+				generator.grade(submissions.get(i % submissions.size()));
+			}
+			Report report = generator.run(submissions, defects, rate, duration);
+			out.println(report.format());
+		} catch (Exception e) {
+			err.println(Utils.getMessageTrace(e));
+			System.exit(1);
+		} finally {
+			if (folder != null) {
+				Utils.removeDirectoryAndContents(folder);
+			}
+		}
+	}
+
+	/**
+	 * Results of load test.
+	 */
+	public static final class Report {
+
+		private final long[] latencies; ///< sorted latencies of all requests (in nanoseconds)
+		private final long elapsed; ///< time from first scheduled request to last response (in nanoseconds)
+		private final double targetRate; ///< target request rate (per second)
+		private final int passed; ///< number of responses with all criteria passed
+		private final int failed; ///< number of responses with failed criteria
+		private final int errors; ///< number of error responses
+		private final int unexpected; ///< number of responses not matching submission validity
+
+		/**
+		 * Default and only constructor.
+		 */
+		private Report (long[] latencies, long elapsed, double targetRate, int passed, int failed, int errors,
+				int unexpected) {
+			this.latencies = latencies;
+			this.elapsed = elapsed;
+			this.targetRate = targetRate;
+			this.passed = passed;
+			this.failed = failed;
+			this.errors = errors;
+			this.unexpected = unexpected;
+		}
+
+		/**
+		 * Get latency percentile.
+		 *
+		 * @param percentile percentile (0 - 100)
+		 * @return Latency in milliseconds (nearest-rank method).
+		 */
+		public double getPercentile (double percentile) {
+			if (this.latencies.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(percentile / 100 * this.latencies.length);
+			return this.latencies[Math.max(0, Math.min(this.latencies.length, rank) - 1)] / 1e6;
+		}
+
+		/**
+		 * @return Achieved throughput (responses per second).
+		 */
+		public double getThroughput () {
+			return (this.elapsed > 0) ? this.latencies.length / (this.elapsed / 1e9) : 0;
+		}
+
+		/**
+		 * @return Human-readable report.
+		 */
+		public String format () {
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("requests:    %d (%d passed, %d failed, %d errors, %d unexpected)%n",
+					this.latencies.length, this.passed, this.failed, this.errors, this.unexpected));
+			report.append(String.format("throughput:  %.2f/s (target %.2f/s)%n", this.getThroughput(), this.targetRate));
+			report.append(String.format("latency ms:  p50 %.1f, p95 %.1f, p99 %.1f, max %.1f%n",
+					this.getPercentile(50), this.getPercentile(95), this.getPercentile(99), this.getPercentile(100)));
+			long peakRss = getPeakRss();
+			report.append((peakRss >= 0)
+					? String.format("peak RSS:    %d MB", peakRss / (1024 * 1024))
+					: String.format("peak heap:   %d MB", getPeakHeap() / (1024 * 1024)));
+			return report.toString();
+		}
+	}
+
+	/**
+	 * Grade submissions at target rate.
+	 *
+	 * @param submissions submission archives (graded in round-robin fashion)
+	 * @param defects mistakes contained in respective submissions
+	 * @param rate target request rate (per second)
+	 * @param duration duration of load test (in seconds)
+	 * @return Load test results.
+	 * @throws InterruptedException in case test is interrupted
+	 */
+	public Report run (final List<File> submissions, final List<SubmissionGenerator.Defect> defects,
+			double rate, int duration) throws InterruptedException {
+		final int requestCount = Math.max(1, (int) (rate * duration));
+		final long interval = (long) (1e9 / rate);
+		final long[] latencies = new long[requestCount];
+		final int[] outcomes = new int[requestCount];
+
+		ExecutorService pool = Executors.newFixedThreadPool(this.threadCount);
+		final long start = System.nanoTime();
+		for (int i = 0; i < requestCount; ++i) {
+			final int index = i;
+			final long scheduled = start + i * interval;
+			long delay = scheduled - System.nanoTime();
+			if (delay > 0) {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			}
+			pool.execute(new Runnable() {
+				public void run() {
+					File submission = submissions.get(index % submissions.size());
+					String reply = LoadGenerator.this.grade(submission);
+					latencies[index] = System.nanoTime() - scheduled;
+					outcomes[index] = classify(reply);
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		long elapsed = System.nanoTime() - start;
+
+		int[] counts = new int[3];
+		int unexpected = 0;
+		for (int i = 0; i < requestCount; ++i) {
+			++counts[outcomes[i]];
+			boolean valid = (defects.get(i % defects.size()) == SubmissionGenerator.Defect.NONE);
+			if (valid != (outcomes[i] == 0)) {
+				++unexpected;
+			}
+		}
+		Arrays.sort(latencies);
+		return new Report(latencies, elapsed, rate, counts[0], counts[1], counts[2], unexpected);
+	}
+
+	/**
+	 * Grade single submission by fresh plugin instance.
+	 *
+	 * @param submission submission archive
+	 * @return Plugin response.
+	 */
+	private String grade (File submission) {
+		String[] args = new String[this.params.length + 1];
+		args[0] = submission.getAbsolutePath();
+		System.arraycopy(this.params, 0, args, 1, this.params.length);
+		return this.factory.run(args);
+	}
+
+	/**
+	 * Classify plugin response.
+	 *
+	 * @param reply plugin response
+	 * @return 0 if all criteria passed, 1 if some criteria failed, 2 in case of error response.
+	 */
+	private static int classify (String reply) {
+		if ((reply == null) || reply.contains("<plugin-reply><error>")) {
+			return 2;
+		}
+		return reply.contains("<passed>false</passed>") ? 1 : 0;
+	}
+
+	/**
+	 * Read peak resident set size of this process.
+	 *
+	 * @return Peak RSS in bytes or -1 if it cannot be determined (on systems without @c /proc ).
+	 */
+	private static long getPeakRss () {
+		File status = new File("/proc/self/status");
+		if (!status.canRead()) {
+			return -1;
+		}
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(status), "UTF-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.startsWith("VmHWM:")) {
+						return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+		}
+		return -1;
+	}
+
+	/**
+	 * Sum peak usages of heap memory pools.
+	 *
+	 * @return Peak heap usage in bytes (upper bound, pools peak at different times).
+	 */
+	private static long getPeakHeap () {
+		long peak = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		return peak;
+	}
+}
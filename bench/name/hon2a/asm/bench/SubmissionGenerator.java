@@ -0,0 +1,193 @@
+package name.hon2a.asm.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import name.hon2a.asm.Utils;
+
+/**
+ * Generator of synthetic submission archives for load tests.
+ *
+ * Generates submissions in layout expected by DOM-SAX plugin
+ * (name.hon2a.asmp.domsax.Main):
+ * @code
+ * data.xml
+ * dom/user/MyDomTransformer.java
+ * sax/user/MySaxHandler.java
+ * @endcode
+ * and XQuery plugin (name.hon2a.asmp.xquery.Main):
+ * @code
+ * data.xml
+ * query1.xq
+ * query2.xq
+ * ...
+ * @endcode
+ *
+ * Valid submissions pass all plugin criteria. Broken submissions contain one of
+ * the mistakes commonly found in student submissions (see Defect), so that
+ * error paths of plugins are exercised as well.
+ *
+ * @author %hon2a
+ */
+public final class SubmissionGenerator {
+
+	/**
+	 * Types of submissions.
+	 */
+	public enum Kind {
+		DOMSAX, ///< submission for DOM-SAX plugin
+		XQUERY ///< submission for XQuery plugin
+	}
+
+	/**
+	 * Mistakes introduced into broken submissions.
+	 */
+	public enum Defect {
+		NONE, ///< valid submission
+		MALFORMED_XML, ///< data.xml is not well-formed
+		COMPILE_ERROR, ///< DOM transformer does not compile / XQuery query has syntax error
+		RUNTIME_ERROR, ///< SAX handler throws exception / XQuery query fails on evaluation
+		MISSING_FILES ///< DOM-SAX sources are missing / XQuery queries lack required constructs
+	}
+
+	private static final String DOM_TRANSFORMER = "package user;\n\n"
+			+ "import org.w3c.dom.*;\n\n"
+			+ "public class MyDomTransformer {\n"
+			+ "\tpublic void transform (Document doc) {\n"
+			+ "\t\tNodeList books = doc.getElementsByTagName(\"book\");\n"
+			+ "\t\tfor (int i = books.getLength() - 1; i >= 0; --i) {\n"
+			+ "\t\t\tElement book = (Element) books.item(i);\n"
+			+ "\t\t\tbook.setAttribute(\"length\", Integer.toString(book.getTextContent().length()));\n"
+			+ "\t\t}\n"
+			+ "\t\tNodeList notes = doc.getElementsByTagName(\"note\");\n"
+			+ "\t\tfor (int i = notes.getLength() - 1; i >= 0; --i) {\n"
+			+ "\t\t\tnotes.item(i).getParentNode().removeChild(notes.item(i));\n"
+			+ "\t\t}\n"
+			+ "\t\tdoc.getDocumentElement().appendChild(doc.createElement(\"summary\"))\n"
+			+ "\t\t\t\t.setTextContent(Integer.toString(books.getLength()));\n"
+			+ "\t}\n"
+			+ "}\n"; ///< valid DOM transformer
+	private static final String SAX_HANDLER = "package user;\n\n"
+			+ "import java.util.HashMap;\n"
+			+ "import java.util.Map;\n"
+			+ "import org.xml.sax.Attributes;\n"
+			+ "import org.xml.sax.SAXException;\n"
+			+ "import org.xml.sax.helpers.DefaultHandler;\n\n"
+			+ "public class MySaxHandler extends DefaultHandler {\n"
+			+ "\tprivate Map<String, Integer> counts = new HashMap<String, Integer>();\n"
+			+ "\tprivate int depth = 0;\n\n"
+			+ "\t@Override\n"
+			+ "\tpublic void startElement (String uri, String localName, String qName, Attributes atts) throws SAXException {\n"
+			+ "\t\t%s\n"
+			+ "\t\tInteger count = this.counts.get(qName);\n"
+			+ "\t\tthis.counts.put(qName, (count == null) ? 1 : count + 1);\n"
+			+ "\t\t++this.depth;\n"
+			+ "\t}\n\n"
+			+ "\t@Override\n"
+			+ "\tpublic void endElement (String uri, String localName, String qName) {\n"
+			+ "\t\t--this.depth;\n"
+			+ "\t}\n\n"
+			+ "\t@Override\n"
+			+ "\tpublic void endDocument () {\n"
+			+ "\t\tSystem.out.println(this.counts);\n"
+			+ "\t}\n"
+			+ "}\n"; ///< SAX handler (with placeholder for extra statement)
+	/// extra statement making SAX handler fail
+	private static final String SAX_FAILURE = "if (this.depth > 0 && qName.equals(\"note\")) { throw new SAXException(\"Unexpected note\"); }";
+	/// filler queries (used when more queries than BenchmarkData::getQueries() are requested)
+	private static final String[] FILLER_QUERIES = {
+		"<count>{count(/library/book)}</count>\n",
+		"<authors>{for $a in //author order by string($a) return <author>{string($a)}</author>}</authors>\n",
+		"<ids>{string-join(for $e in /library/* return string($e/@id), ' ')}</ids>\n"
+	};
+
+	/**
+	 * Static class.
+	 */
+	private SubmissionGenerator () {
+	}
+
+	/**
+	 * Generate submission archive.
+	 *
+	 * @param archive path of created zip archive
+	 * @param kind type of submission
+	 * @param defect mistake to introduce (Defect::NONE for valid submission)
+	 * @param size approximate size of data.xml (in characters)
+	 * @param queryCount number of XQuery queries (ignored for DOM-SAX submissions)
+	 * @param seed seed of random data
+	 * @throws IOException in case archive cannot be written
+	 */
+	public static void generate (File archive, Kind kind, Defect defect, int size, int queryCount, long seed)
+			throws IOException {
+		File folder = Utils.createTempDirectory();
+		try {
+			Random random = new Random(seed);
+			String xml = BenchmarkData.createXml(size + random.nextInt(Math.max(1, size / 8)));
+			if (defect == Defect.MALFORMED_XML) {
+				int cut = xml.indexOf("</", xml.length() / 2);
+				xml = xml.substring(0, cut) + xml.substring(xml.indexOf('>', cut) + 1);
+			}
+			save(new File(folder, "data.xml"), xml);
+
+			if (kind == Kind.DOMSAX) {
+				if (defect != Defect.MISSING_FILES) {
+					save(new File(folder, "dom/user/MyDomTransformer.java"), (defect == Defect.COMPILE_ERROR)
+							? DOM_TRANSFORMER.replace("removeChild(notes.item(i));", "removeChild(notes.item(i))")
+							: DOM_TRANSFORMER);
+				}
+				save(new File(folder, "sax/user/MySaxHandler.java"),
+						String.format(SAX_HANDLER, (defect == Defect.RUNTIME_ERROR) ? SAX_FAILURE : ""));
+			} else {
+				List<String> queries = createQueries(defect, queryCount);
+				for (int i = 0; i < queries.size(); ++i) {
+					save(new File(folder, String.format("query%d.xq", i + 1)), queries.get(i));
+				}
+			}
+			Utils.zip(folder, archive);
+		} finally {
+			Utils.removeDirectoryAndContents(folder);
+		}
+	}
+
+	/**
+	 * Create XQuery queries for submission.
+	 *
+	 * @param defect mistake to introduce
+	 * @param queryCount number of queries
+	 * @return Query texts.
+	 */
+	private static List<String> createQueries (Defect defect, int queryCount) {
+		String[] covering = BenchmarkData.getQueries();
+		List<String> queries = new ArrayList<String>();
+		for (int i = 0; i < queryCount; ++i) {
+			if ((i < covering.length) && (defect != Defect.MISSING_FILES)) {
+				queries.add(covering[i]);
+			} else {
+				queries.add(FILLER_QUERIES[i % FILLER_QUERIES.length]);
+			}
+		}
+		int last = queries.size() - 1;
+		if ((defect == Defect.COMPILE_ERROR) && (last >= 0)) {
+			queries.set(last, queries.get(last).replaceFirst("\\}", ""));
+		} else if ((defect == Defect.RUNTIME_ERROR) && (last >= 0)) {
+			queries.set(last, "<fail>{error(xs:QName('err:FOER0000'), 'Intentional failure')}</fail>\n");
+		}
+		return queries;
+	}
+
+	/**
+	 * Save text file (including missing parent folders).
+	 *
+	 * @param file destination file
+	 * @param contents file contents
+	 * @throws IOException in case file cannot be written
+	 */
+	private static void save (File file, String contents) throws IOException {
+		file.getParentFile().mkdirs();
+		Utils.saveBinaryFile(file, new ByteArrayInputStream(contents.getBytes("UTF-8")));
+	}
+}
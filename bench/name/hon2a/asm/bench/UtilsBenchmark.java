@@ -0,0 +1,181 @@
+package name.hon2a.asm.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import name.hon2a.asm.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Microbenchmarks of Utils I/O and string helpers used on every plugin run.
+ *
+ * All file benchmarks work with submission-like data (generated XML text) of
+ * size given by @c size parameter. Run with allocation profiler (see
+ * @c benchmarks.xml ) to compare both throughput and bytes allocated per operation.
+ *
+ * @author %hon2a
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilsBenchmark {
+
+	/**
+	 * Files shared by all benchmark invocations.
+	 */
+	@State(Scope.Benchmark)
+	public static class Data {
+
+		@Param({ "1024", "65536", "1048576" })
+		public int size; ///< size of text data (in bytes)
+
+		@Param({ "16" })
+		public int fileCount; ///< number of files in packed folder
+
+		public File root; ///< temporary folder with all benchmark files
+		public File textFile; ///< UTF-8 text file without BOM
+		public File bomFile; ///< UTF-8 text file with BOM
+		public File folder; ///< folder with @ref fileCount files of total @ref size bytes
+		public File archive; ///< zip archive of @ref folder
+		public String text; ///< contents of @ref textFile
+		public byte[] bytes; ///< contents of @ref textFile as bytes
+
+		@Setup(Level.Trial)
+		public void setUp () throws IOException {
+			this.root = Utils.createTempDirectory();
+			this.text = BenchmarkData.createXml(this.size);
+			this.bytes = this.text.getBytes("UTF-8");
+
+			this.textFile = new File(this.root, "data.xml");
+			Utils.saveBinaryFile(this.textFile, new ByteArrayInputStream(this.bytes));
+			byte[] bom = new byte[] { (byte) 0xEF, (byte) 0xBB, (byte) 0xBF };
+			byte[] bomBytes = new byte[bom.length + this.bytes.length];
+			System.arraycopy(bom, 0, bomBytes, 0, bom.length);
+			System.arraycopy(this.bytes, 0, bomBytes, bom.length, this.bytes.length);
+			this.bomFile = new File(this.root, "data-bom.xml");
+			Utils.saveBinaryFile(this.bomFile, new ByteArrayInputStream(bomBytes));
+
+			this.folder = new File(this.root, "folder");
+			BenchmarkData.createFolder(this.folder, this.fileCount, this.size);
+			this.archive = new File(this.root, "folder.zip");
+			Utils.zip(this.folder, this.archive);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown () {
+			Utils.removeDirectoryAndContents(this.root);
+		}
+	}
+
+	/**
+	 * Fresh destination for every benchmark invocation that writes files.
+	 */
+	@State(Scope.Thread)
+	public static class Destination {
+
+		public File folder; ///< empty destination folder
+		public File file; ///< non-existent destination file
+
+		@Setup(Level.Invocation)
+		public void setUp () throws IOException {
+			this.folder = Utils.createTempDirectory();
+			this.file = new File(this.folder, "dest");
+		}
+
+		@TearDown(Level.Invocation)
+		public void tearDown () {
+			Utils.removeDirectoryAndContents(this.folder);
+		}
+	}
+
+	/**
+	 * Exception chains for Utils::getMessageTrace().
+	 */
+	@State(Scope.Benchmark)
+	public static class Exceptions {
+
+		@Param({ "1", "5", "20" })
+		public int depth; ///< number of exceptions in chain
+
+		public Throwable exception; ///< top of exception chain
+
+		@Setup(Level.Trial)
+		public void setUp () {
+			Throwable cause = null;
+			for (int i = 0; i < this.depth; ++i) {
+				cause = new IOException("Error " + i + " in /tmp/asmTempFolder_1/data.xml", cause);
+			}
+			this.exception = cause;
+		}
+	}
+
+	@Benchmark
+	public File unzip (Data data, Destination dest) throws IOException {
+		Utils.unzip(data.archive, dest.folder);
+		return dest.folder;
+	}
+
+	@Benchmark
+	public File zipDeflated (Data data, Destination dest) throws IOException {
+		Utils.zip(data.folder, dest.file, false);
+		return dest.file;
+	}
+
+	@Benchmark
+	public File zipStored (Data data, Destination dest) throws IOException {
+		Utils.zip(data.folder, dest.file, true);
+		return dest.file;
+	}
+
+	@Benchmark
+	public String loadTextFile (Data data) throws IOException {
+		return Utils.loadTextFile(data.textFile);
+	}
+
+	@Benchmark
+	public String loadTextFileWithBom (Data data) throws IOException {
+		return Utils.loadTextFile(data.bomFile);
+	}
+
+	@Benchmark
+	public File saveTextFile (Data data, Destination dest) throws IOException {
+		Utils.saveTextFile(dest.file, new ByteArrayInputStream(data.bytes), "UTF-8");
+		return dest.file;
+	}
+
+	@Benchmark
+	public File saveBinaryFile (Data data, Destination dest) throws IOException {
+		Utils.saveBinaryFile(dest.file, new ByteArrayInputStream(data.bytes));
+		return dest.file;
+	}
+
+	@Benchmark
+	public String indent (Data data) {
+		return Utils.indent(data.text);
+	}
+
+	@Benchmark
+	public String escapeXml (Data data) {
+		return Utils.escapeXml(data.text);
+	}
+
+	@Benchmark
+	public String getMessageTrace (Exceptions exceptions) {
+		return Utils.getMessageTrace(exceptions.exception);
+	}
+}
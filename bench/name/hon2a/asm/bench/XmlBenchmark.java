@@ -0,0 +1,136 @@
+package name.hon2a.asm.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import name.hon2a.asm.Test;
+import name.hon2a.asm.TestException;
+import name.hon2a.asm.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Microbenchmarks of XML processing stages of DOM and SAX tests.
+ *
+ * Stages are measured separately: DOM build (Test::loadXmlFile()), DOM
+ * serialization (as in DomJavaTest::doTest()) and SAX parsing with no-op handler
+ * (as in SaxJavaTest::doTest(), without cost of user handler).
+ *
+ * @author %hon2a
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XmlBenchmark {
+
+	/**
+	 * Test giving access to XML helpers of Test class.
+	 */
+	public static final class XmlLoader extends Test {
+
+		/**
+		 * Create test without sources.
+		 */
+		public XmlLoader () {
+			super(new HashMap<String, String>());
+		}
+
+		/**
+		 * Load and parse XML file as tests do.
+		 *
+		 * @param source XML file
+		 * @return Parsed document.
+		 * @throws TestException in case file cannot be loaded or parsed
+		 */
+		public Document load (File source) throws TestException {
+			return this.loadXmlFile(source);
+		}
+
+		@Override
+		protected void setGoals () throws TestException {
+		}
+
+		@Override
+		protected void doTest () throws TestException {
+		}
+	}
+
+	/**
+	 * XML document shared by all benchmark invocations.
+	 */
+	@State(Scope.Benchmark)
+	public static class Data {
+
+		@Param({ "1024", "65536", "1048576" })
+		public int size; ///< size of XML document (in bytes)
+
+		public File root; ///< temporary folder with XML file
+		public File xmlFile; ///< XML file
+		public byte[] bytes; ///< contents of @ref xmlFile
+		public Document document; ///< parsed contents of @ref xmlFile
+		public XmlLoader loader; ///< test used for loading XML
+
+		@Setup(Level.Trial)
+		public void setUp () throws IOException, TestException {
+			this.root = Utils.createTempDirectory();
+			this.bytes = BenchmarkData.createXml(this.size).getBytes("UTF-8");
+			this.xmlFile = new File(this.root, "data.xml");
+			Utils.saveBinaryFile(this.xmlFile, new ByteArrayInputStream(this.bytes));
+			this.loader = new XmlLoader();
+			this.document = this.loader.load(this.xmlFile);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown () {
+			Utils.removeDirectoryAndContents(this.root);
+		}
+	}
+
+	@Benchmark
+	public Document domBuild (Data data) throws TestException {
+		return data.loader.load(data.xmlFile);
+	}
+
+	@Benchmark
+	public byte[] domSerialize (Data data) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		Transformer transformer = TransformerFactory.newInstance().newTransformer();
+		transformer.transform(new DOMSource(data.document), new StreamResult(baos));
+		return baos.toByteArray();
+	}
+
+	@Benchmark
+	public DefaultHandler saxParse (Data data) throws Exception {
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setValidating(false);
+		factory.setNamespaceAware(true);
+		SAXParser saxParser = factory.newSAXParser();
+		DefaultHandler handler = new DefaultHandler();
+		saxParser.parse(new ByteArrayInputStream(data.bytes), handler, data.xmlFile.getAbsolutePath());
+		return handler;
+	}
+}
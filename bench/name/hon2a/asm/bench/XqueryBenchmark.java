@@ -0,0 +1,163 @@
+package name.hon2a.asm.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.dom.DOMSource;
+import name.hon2a.asm.TestException;
+import name.hon2a.asmp.xquery.XqueryTest;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.Item;
+import net.sf.saxon.query.DynamicQueryContext;
+import net.sf.saxon.query.QueryResult;
+import net.sf.saxon.query.StaticQueryContext;
+import net.sf.saxon.query.XQueryExpression;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+/**
+ * Microbenchmarks of XQuery test stages.
+ *
+ * Besides query preprocessing (XqueryTest::stripXqueryComments() and
+ * XqueryTest::checkXqueryConstructCoverage()), stages of XqueryTest::runQueries()
+ * are measured separately: query compilation, conversion of DOM document to Saxon
+ * tree, and evaluation with serialization of results. As runQueries() performs
+ * all stages at once, benchmarks repeat its Saxon calls with the same configuration.
+ *
+ * @author %hon2a
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XqueryBenchmark {
+
+	/**
+	 * XQuery test giving access to its query preprocessing.
+	 */
+	public static final class QueryChecker extends XqueryTest {
+
+		/**
+		 * Create test without sources.
+		 */
+		public QueryChecker () {
+			super(new HashMap<String, String>(), new HashMap<String, String>(), null, null);
+		}
+
+		/**
+		 * @see XqueryTest::stripXqueryComments()
+		 */
+		public String strip (String query) {
+			return this.stripXqueryComments(query);
+		}
+
+		/**
+		 * @see XqueryTest::checkXqueryConstructCoverage()
+		 */
+		public String check (String[] queries) throws TestException {
+			return this.checkXqueryConstructCoverage(queries);
+		}
+	}
+
+	/**
+	 * Queries (with and without comments) shared by all benchmark invocations.
+	 */
+	@State(Scope.Benchmark)
+	public static class Queries {
+
+		@Param({ "0", "1", "2" })
+		public int queryIndex; ///< index of query used by single-query benchmarks
+
+		public QueryChecker checker; ///< test used for query preprocessing
+		public String[] rawQueries; ///< query texts with comments
+		public String[] queries; ///< query texts without comments
+		public Configuration config; ///< Saxon configuration
+		public StaticQueryContext sqc; ///< static context for query compilation
+		public Properties props; ///< serialization properties used by XqueryTest
+
+		@Setup(Level.Trial)
+		public void setUp () {
+			this.checker = new QueryChecker();
+			this.rawQueries = BenchmarkData.getQueries();
+			this.queries = new String[this.rawQueries.length];
+			for (int i = 0; i < this.rawQueries.length; ++i) {
+				this.queries[i] = this.checker.strip(this.rawQueries[i]);
+			}
+			this.config = new Configuration();
+			this.sqc = new StaticQueryContext(this.config);
+			this.sqc.setBaseURI(new File(".").toURI().toString());
+			this.props = new Properties();
+			this.props.setProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+			this.props.setProperty(OutputKeys.INDENT, "yes");
+		}
+	}
+
+	/**
+	 * Document and compiled query shared by all benchmark invocations.
+	 */
+	@State(Scope.Benchmark)
+	public static class Data {
+
+		@Param({ "1024", "65536", "1048576" })
+		public int size; ///< size of XML document (in bytes)
+
+		public Document document; ///< DOM document (as parsed by XqueryTest)
+		public Item contextItem; ///< @ref document converted to Saxon tree
+		public XQueryExpression expression; ///< compiled query
+
+		@Setup(Level.Trial)
+		public void setUp (Queries queries) throws Exception {
+			this.document = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+					.parse(new InputSource(new StringReader(BenchmarkData.createXml(this.size))));
+			this.contextItem = queries.config.buildDocument(new DOMSource(this.document));
+			this.expression = queries.sqc.compileQuery(queries.queries[queries.queryIndex]);
+		}
+	}
+
+	@Benchmark
+	public String stripComments (Queries queries) {
+		return queries.checker.strip(queries.rawQueries[queries.queryIndex]);
+	}
+
+	@Benchmark
+	public String constructCoverage (Queries queries) throws TestException {
+		return queries.checker.check(queries.queries);
+	}
+
+	@Benchmark
+	public XQueryExpression compileQuery (Queries queries) throws Exception {
+		return queries.sqc.compileQuery(queries.queries[queries.queryIndex]);
+	}
+
+	@Benchmark
+	public Item buildDocument (Queries queries, Data data) throws Exception {
+		return queries.config.buildDocument(new DOMSource(data.document));
+	}
+
+	@Benchmark
+	public byte[] serialize (Queries queries, Data data) throws Exception {
+		DynamicQueryContext dynamicContext = new DynamicQueryContext(queries.config);
+		dynamicContext.setContextItem(data.contextItem);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		QueryResult.serializeSequence(data.expression.iterator(dynamicContext), queries.config, out, queries.props);
+		return out.toByteArray();
+	}
+}
@@ -1,16 +1,19 @@
-import name.hon2a.asmp.domsax.Main;
+import name.hon2a.asm.PluginReplay;
 
+/**
+ * Replays captured DOM-SAX submissions (see PluginReplay).
+ *
+ * Usage:
+ * @code
+ * java Fire INPUT [-runs COUNT] [-warmup COUNT] [-fork] [-outlier FACTOR] [PLUGIN_PARAMS...]
+ * @endcode
+ */
 public class Fire {
     public static void main(String[] args)
     {
-
-        name.hon2a.asmp.domsax.Main domSax = new Main();
-        System.out.println(
-                domSax.run(
-                        new String[] {
-                                "C:\\Apps\\EasyPHP\\data\\localweb\\xmlcheck\\phptests\\plugins\\cases\\DOMSAX\\domSax_correct.zip"
-                        } ));
-
+        String[] replayArgs = new String[args.length + 1];
+        replayArgs[0] = name.hon2a.asmp.domsax.Main.class.getName();
+        System.arraycopy(args, 0, replayArgs, 1, args.length);
+        PluginReplay.main(replayArgs);
     }
 }
-
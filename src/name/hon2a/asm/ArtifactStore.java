@@ -0,0 +1,127 @@
+package name.hon2a.asm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Per-run store of artifacts derived from submission files.
+ *
+ * Several tests of one plugin often load the same input (e.g. data.xml parsed
+ * by both DOM and SAX test). Store computes every artifact (decoded text,
+ * parsed document) only once, even if it is requested by several
+ * tests running in parallel; other requesters wait for the first computation
+ * to finish and share its result (or its failure).
+ *
+ * Parsed documents are kept as immutable templates. Every requester gets its
+ * own deep copy, so that tests may freely modify it.
+ *
+ * Store assumes files do not change while the plugin is running.
+ *
+ * @author %hon2a
+ */
+public final class ArtifactStore {
+
+	/// computed (or currently computed) artifacts by their keys
+	private final ConcurrentMap<String, FutureTask<Object>> artifacts = new ConcurrentHashMap<String, FutureTask<Object>>();
+
+	/**
+	 * Load text file (the same way as Utils::loadTextFile()).
+	 *
+	 * @param source file to be loaded
+	 * @return Text contents of file.
+	 * @throws IOException in case file cannot be read
+	 */
+	public String getText (final File source) throws IOException {
+		try {
+			return (String) this.get("text:" + source.getAbsolutePath(), new Callable<Object>() {
+				@Override
+				public Object call () throws IOException {
+					return Utils.loadTextFile(source);
+				}
+			});
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/**
+	 * Load and parse XML file (the same way as Test::loadXmlFile()).
+	 *
+	 * @param source file to be loaded
+	 * @param validate whether to validate XML on parsing
+	 * @return Private copy of parsed document.
+	 * @throws IOException in case file cannot be read
+	 * @throws ParserConfigurationException in case XML parser cannot be initialized
+	 * @throws SAXException in case XML cannot be parsed
+	 */
+	public Document getDocument (final File source, final boolean validate)
+			throws IOException, ParserConfigurationException, SAXException {
+		final String xmlString = this.getText(source);
+		Document template;
+		try {
+			template = (Document) this.get("document:" + validate + ":" + source.getAbsolutePath(),
+					new Callable<Object>() {
+				@Override
+				public Object call () throws ParserConfigurationException, SAXException, IOException {
+					DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+					factory.setValidating(validate);
+					DocumentBuilder builder = factory.newDocumentBuilder();
+					// errors are reported by exception, not printed to standard error output
+					builder.setErrorHandler(new DefaultHandler());
+					return builder.parse(new ByteArrayInputStream(xmlString.getBytes()), source.getAbsolutePath());
+				}
+			});
+		} catch (IOException | ParserConfigurationException | SAXException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+		// DOM implementation is not thread-safe even for reading
+		synchronized (template) {
+			return (Document) template.cloneNode(true);
+		}
+	}
+
+	/**
+	 * Get artifact, computing it first if it has not been requested yet.
+	 *
+	 * @param key artifact key
+	 * @param computation computation of artifact
+	 * @return Artifact.
+	 * @throws Exception exception thrown by computation
+	 */
+	private Object get (String key, Callable<Object> computation) throws Exception {
+		FutureTask<Object> artifact = this.artifacts.get(key);
+		if (artifact == null) {
+			FutureTask<Object> newArtifact = new FutureTask<Object>(computation);
+			artifact = this.artifacts.putIfAbsent(key, newArtifact);
+			if (artifact == null) {
+				artifact = newArtifact;
+				artifact.run();
+			}
+		}
+		try {
+			return artifact.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception) {
+				throw (Exception) cause;
+			}
+			throw (java.lang.Error) cause;
+		}
+	}
+}
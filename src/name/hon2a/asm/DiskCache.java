@@ -0,0 +1,286 @@
+package name.hon2a.asm;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded on-disk store of cache entries (used by ResultCache and TestCache).
+ *
+ * Each entry is a folder named by its key. Entries are written to temporary
+ * folder first and then renamed, so that other processes using the same cache
+ * folder never see incomplete entries. Least recently used entries are removed
+ * once total size of entries exceeds size limit. Whole cache is cleared on first
+ * use if it was created with different version.
+ *
+ * @author %hon2a
+ */
+public final class DiskCache {
+
+	private static final String VERSION_FILE = "version"; ///< name of file with cache version in cache folder
+	private static final String TEMP_PREFIX = "tmp_"; ///< name prefix of entries being written
+
+	private final File root; ///< cache folder
+	private final long maxBytes; ///< maximum total size of entries
+	private final String version; ///< cache version
+	private Map<String, Long> entries = null; ///< sizes of entries in LRU order (loaded lazily)
+	private long totalBytes = 0; ///< total size of entries
+
+	/**
+	 * Default and only constructor.
+	 *
+	 * @param root cache folder
+	 * @param maxBytes maximum total size of entries
+	 * @param version cache version
+	 */
+	public DiskCache (File root, long maxBytes, String version) {
+		this.root = root;
+		this.maxBytes = maxBytes;
+		this.version = version;
+	}
+
+	/**
+	 * Create SHA-256 digest for computing cache keys.
+	 *
+	 * @return Message digest.
+	 * @throws IOException in case SHA-256 is not available
+	 */
+	public static MessageDigest createDigest () throws IOException {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Cache key cannot be computed", e);
+		}
+	}
+
+	/**
+	 * Add length-prefixed string to digest (so that sequences of strings cannot collide).
+	 *
+	 * @param digest message digest
+	 * @param str string to be added (null is treated as empty string)
+	 * @throws IOException
+	 */
+	public static void update (MessageDigest digest, String str) throws IOException {
+		byte[] bytes = ((str == null) ? "" : str).getBytes("UTF-8");
+		digest.update((byte) 0);
+		digest.update(Integer.toString(bytes.length).getBytes("UTF-8"));
+		digest.update((byte) 0);
+		digest.update(bytes);
+	}
+
+	/**
+	 * Finish digest and return it as cache key.
+	 *
+	 * @param digest message digest
+	 * @return Hexadecimal digest value.
+	 */
+	public static String toKey (MessageDigest digest) {
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(String.format("%02x", b & 0xFF));
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Retrieve entry folder and mark entry as recently used.
+	 *
+	 * @param key cache key
+	 * @return Entry folder or null if there is no such entry.
+	 */
+	public synchronized File get (String key) {
+		this.load();
+		if (this.entries.get(key) == null) {
+			return null;
+		}
+		File entryFolder = new File(this.root, key);
+		entryFolder.setLastModified(System.currentTimeMillis());
+		return entryFolder;
+	}
+
+	/**
+	 * Forget entry that turned out to be unreadable (e.g. because it has been
+	 * evicted by another process).
+	 *
+	 * @param key cache key
+	 */
+	public synchronized void discard (String key) {
+		this.load();
+		Long size = this.entries.remove(key);
+		if (size != null) {
+			this.totalBytes -= size;
+		}
+		Utils.removeDirectoryAndContents(new File(this.root, key));
+	}
+
+	/**
+	 * Check whether entry exists.
+	 *
+	 * @param key cache key
+	 * @return True if entry exists, false otherwise.
+	 */
+	public synchronized boolean contains (String key) {
+		this.load();
+		return this.entries.containsKey(key);
+	}
+
+	/**
+	 * Create temporary folder for new entry (see DiskCache::commit()).
+	 *
+	 * @param key cache key
+	 * @return Empty temporary folder.
+	 * @throws IOException in case folder cannot be created
+	 */
+	public synchronized File prepare (String key) throws IOException {
+		this.load();
+		File tempFolder = new File(this.root, TEMP_PREFIX + key + "_" + System.nanoTime());
+		if (!tempFolder.mkdirs()) {
+			throw new IOException("Cache entry cannot be created");
+		}
+		return tempFolder;
+	}
+
+	/**
+	 * Publish entry written to temporary folder and evict least recently used
+	 * entries if cache is too large.
+	 *
+	 * Temporary folder is removed if it cannot be published (or if entry exists already).
+	 *
+	 * @param key cache key
+	 * @param tempFolder temporary folder created by DiskCache::prepare()
+	 * @throws IOException in case entry cannot be published
+	 */
+	public synchronized void commit (String key, File tempFolder) throws IOException {
+		File entryFolder = new File(this.root, key);
+		try {
+			if (this.entries.containsKey(key) || entryFolder.exists()) {
+				return;
+			}
+			Files.move(tempFolder.toPath(), entryFolder.toPath(), StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			if (tempFolder.exists()) {
+				Utils.removeDirectoryAndContents(tempFolder);
+			}
+		}
+		long size = sizeOf(entryFolder);
+		this.entries.put(key, size);
+		this.totalBytes += size;
+		this.evict();
+	}
+
+	/**
+	 * Load list of cache entries from cache folder (on first use), clearing cache
+	 * if its version differs.
+	 */
+	private void load () {
+		if (this.entries != null) {
+			return;
+		}
+		this.entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+		this.root.mkdirs();
+		File versionFile = new File(this.root, VERSION_FILE);
+		String storedVersion = null;
+		try {
+			storedVersion = versionFile.exists() ? Utils.loadTextFile(versionFile) : null;
+		} catch (IOException e) {
+		}
+		boolean invalidate = !this.version.equals(storedVersion);
+
+		File[] folders = this.root.listFiles();
+		if (folders == null) {
+			folders = new File[0];
+		}
+		Arrays.sort(folders, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(a.lastModified(), b.lastModified());
+			}
+		});
+		for (File folder : folders) {
+			if (!folder.isDirectory()) {
+				continue;
+			}
+			if (invalidate) {
+				Utils.removeDirectoryAndContents(folder);
+			} else if (!folder.getName().startsWith(TEMP_PREFIX)) {
+				long size = sizeOf(folder);
+				this.entries.put(folder.getName(), size);
+				this.totalBytes += size;
+			}
+		}
+		if (invalidate) {
+			try {
+				FileOutputStream out = new FileOutputStream(versionFile);
+				try {
+					out.write(this.version.getBytes("UTF-8"));
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Remove least recently used entries until cache fits in its size limit.
+	 */
+	private void evict () {
+		Iterator<Map.Entry<String, Long>> iterator = this.entries.entrySet().iterator();
+		while ((this.totalBytes > this.maxBytes) && iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+			Utils.removeDirectoryAndContents(new File(this.root, entry.getKey()));
+			this.totalBytes -= entry.getValue();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * Compute total size of files in folder.
+	 *
+	 * @param folder folder
+	 * @return Size in bytes.
+	 */
+	private static long sizeOf (File folder) {
+		long size = 0;
+		for (File file : Utils.listFiles(folder)) {
+			size += file.length();
+		}
+		return size;
+	}
+
+	/**
+	 * Write string of any length (DataOutputStream::writeUTF() is limited to 64 KB).
+	 *
+	 * @param out output stream
+	 * @param str string to be written (null is written as empty string)
+	 * @throws IOException
+	 */
+	public static void writeString (DataOutputStream out, String str) throws IOException {
+		byte[] bytes = ((str == null) ? "" : str).getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read string written by DiskCache::writeString().
+	 *
+	 * @param in input stream
+	 * @return String read from stream.
+	 * @throws IOException
+	 */
+	public static String readString (DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+}
@@ -0,0 +1,172 @@
+package name.hon2a.asm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * Capture of standard output and error output written by current thread.
+ *
+ * Tests run in parallel (see TesterPlugin::execute()), so they cannot redirect
+ * standard streams by System::setOut() and System::setErr() without capturing
+ * output of each other. Instead, standard streams are replaced once for the
+ * whole JVM by demultiplexing streams, which write to capture registered for
+ * current thread, or to original streams if there is none:
+ * @code
+ * ByteArrayOutputStream output = new ByteArrayOutputStream();
+ * OutputCapture capture = OutputCapture.start(output, null);
+ * try {
+ *		// output written to System.out by this thread ends up in output buffer
+ * } finally {
+ *		capture.stop();
+ * }
+ * @endcode
+ *
+ * Capture is inherited by threads started by capturing thread (e.g. by code
+ * under test), so that their output is captured as well. Tests run on shared
+ * scheduler threads (see Scheduler), so capture cannot be bound to thread group,
+ * which is fixed when thread is created. Threads that outlive capture write to
+ * original streams once capture is stopped.
+ *
+ * @author %hon2a
+ */
+public final class OutputCapture {
+
+	/**
+	 * Stream forwarding writes to output of current capture.
+	 */
+	private static final class Demultiplexer extends OutputStream {
+
+		private final PrintStream original; ///< original standard stream
+		private final boolean error; ///< true for error output, false for standard output
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param original original standard stream
+		 * @param error true for error output, false for standard output
+		 */
+		private Demultiplexer (PrintStream original, boolean error) {
+			this.original = original;
+			this.error = error;
+		}
+
+		/**
+		 * Get stream for output of current thread.
+		 *
+		 * @return Capture output or original stream.
+		 */
+		private OutputStream getTarget () {
+			OutputCapture capture = OutputCapture.current.get();
+			if ((capture == null) || !capture.active) {
+				return this.original;
+			}
+			return this.error ? capture.err : capture.out;
+		}
+
+		/**
+		 * Write byte to output of current thread.
+		 *
+		 * @param b byte to be written
+		 * @throws IOException in case target stream fails
+		 */
+		@Override
+		public void write (int b) throws IOException {
+			OutputStream target = this.getTarget();
+			if (target != null) {
+				target.write(b);
+			}
+		}
+
+		/**
+		 * Write bytes to output of current thread.
+		 *
+		 * @param b data
+		 * @param off start offset in data
+		 * @param len number of bytes to write
+		 * @throws IOException in case target stream fails
+		 */
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException {
+			OutputStream target = this.getTarget();
+			if (target != null) {
+				target.write(b, off, len);
+			}
+		}
+
+		/**
+		 * Flush output of current thread.
+		 *
+		 * @throws IOException in case target stream fails
+		 */
+		@Override
+		public void flush () throws IOException {
+			OutputStream target = this.getTarget();
+			if (target != null) {
+				target.flush();
+			}
+		}
+	}
+
+	private static boolean installed = false; ///< true once standard streams have been replaced
+	/// capture of current thread (inherited by threads it starts)
+	private static final InheritableThreadLocal<OutputCapture> current = new InheritableThreadLocal<OutputCapture>();
+
+	private final OutputStream out; ///< destination of standard output (null to discard it)
+	private final OutputStream err; ///< destination of error output (null to discard it)
+	private final OutputCapture previous; ///< capture of current thread before this one was started
+	private volatile boolean active = true; ///< false once capture has been stopped
+
+	/**
+	 * Private constructor (use OutputCapture::start()).
+	 *
+	 * @param out destination of standard output (null to discard it)
+	 * @param err destination of error output (null to discard it)
+	 * @param previous capture of current thread before this one was started
+	 */
+	private OutputCapture (OutputStream out, OutputStream err, OutputCapture previous) {
+		this.out = out;
+		this.err = err;
+		this.previous = previous;
+	}
+
+	/**
+	 * Replace standard streams by demultiplexing streams (only once).
+	 */
+	private static synchronized void install () {
+		if (installed) {
+			return;
+		}
+		System.setOut(new PrintStream(new Demultiplexer(System.out, false), true));
+		System.setErr(new PrintStream(new Demultiplexer(System.err, true), true));
+		installed = true;
+	}
+
+	/**
+	 * Start capturing output of current thread (and threads started by it).
+	 *
+	 * Captures may be nested. Capture must be stopped by the same thread.
+	 *
+	 * @param out destination of standard output (null to discard it)
+	 * @param err destination of error output (null to discard it)
+	 * @return Started capture.
+	 */
+	public static OutputCapture start (OutputStream out, OutputStream err) {
+		OutputCapture.install();
+		OutputCapture capture = new OutputCapture(out, err, OutputCapture.current.get());
+		OutputCapture.current.set(capture);
+		return capture;
+	}
+
+	/**
+	 * Stop capturing output and flush captured output.
+	 *
+	 * Capture that was active before this one was started becomes active again.
+	 */
+	public void stop () {
+		System.out.flush();
+		System.err.flush();
+		this.active = false;
+		OutputCapture.current.set(this.previous);
+	}
+}
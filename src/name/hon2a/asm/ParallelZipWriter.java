@@ -0,0 +1,412 @@
+package name.hon2a.asm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * ZIP archive writer compressing file contents in parallel (see Scheduler).
+ *
+ * Every file is split into blocks that are compressed independently (each block
+ * is primed with end of previous block as dictionary, so compression ratio stays
+ * close to single-threaded compression). Compressed blocks end with sync flush
+ * and are concatenated into single deflate stream per file.
+ *
+ * Files are read block by block and only limited number of blocks is being
+ * compressed or waiting to be written at any time (twice the parallelism of
+ * Scheduler), so memory use does not grow with size of output. Blocks are
+ * written as soon as they are compressed, so checksum and sizes of every entry
+ * follow its data in data descriptor.
+ *
+ * Archives are limited to 65535 entries and 4 GB (no ZIP64 support).
+ *
+ * @author %hon2a
+ * @see Utils::zip()
+ */
+public final class ParallelZipWriter {
+
+	/**
+	 * Archive entry with compressed contents (compression may still be running).
+	 */
+	private static final class Entry {
+
+		private byte[] name; ///< entry name (UTF-8)
+		private long crc; ///< CRC-32 checksum of uncompressed contents
+		private long size; ///< uncompressed size
+		private long compressedSize; ///< compressed size
+		private int dosTime; ///< modification time in MS-DOS format
+		private long offset; ///< offset of local header in archive
+	}
+
+	/**
+	 * Block of entry being compressed.
+	 */
+	private static final class PendingBlock {
+
+		private final Entry entry; ///< entry the block belongs to
+		private final Future<byte[]> block; ///< compressed block
+		private final boolean first; ///< true if block is first in entry
+		private final boolean last; ///< true if block is last in entry
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param entry entry the block belongs to
+		 * @param block compressed block
+		 * @param first true if block is first in entry
+		 * @param last true if block is last in entry
+		 */
+		private PendingBlock (Entry entry, Future<byte[]> block, boolean first, boolean last) {
+			this.entry = entry;
+			this.block = block;
+			this.first = first;
+			this.last = last;
+		}
+	}
+
+	private static final int BLOCK_SIZE = 128 * 1024; ///< size of independently compressed block
+	private static final int DICTIONARY_SIZE = 32 * 1024; ///< size of dictionary (deflate window)
+	private static final int BUFFER_SIZE = 8192; ///< size of deflater output buffer
+	private static final int MAX_ENTRIES = 0xFFFF; ///< maximum number of entries (without ZIP64)
+	private static final long MAX_SIZE = 0xFFFFFFFFL; ///< maximum size of archive or entry (without ZIP64)
+	private static final int FLAG_DATA_DESCRIPTOR = 0x0008; ///< general purpose flag: checksum and sizes follow data
+	private static final int FLAG_UTF8 = 0x0800; ///< general purpose flag: entry name is in UTF-8
+	private static final int METHOD_DEFLATED = 8; ///< compression method: deflate
+	private static final int VERSION = 20; ///< ZIP specification version needed to extract
+
+	/**
+	 * Static class.
+	 */
+	private ParallelZipWriter () {
+	}
+
+	/**
+	 * Pack folder contents into single ZIP archive compressing blocks in parallel.
+	 *
+	 * @param sourceFolder source folder
+	 * @param archive destination file
+	 * @param level compression level (see java.util.zip.Deflater)
+	 * @throws IOException in case archive cannot be written or is too large
+	 */
+	public static void zip (File sourceFolder, File archive, int level) throws IOException {
+		List<File> files = Utils.listFiles(sourceFolder);
+		if (files.size() > MAX_ENTRIES) {
+			throw new IOException("Too many files to be packed (" + files.size() + ")");
+		}
+
+		String basePath = sourceFolder.getAbsolutePath();
+		List<Entry> entries = new ArrayList<Entry>(files.size());
+		int maxPending = 2 * Scheduler.getInstance().getParallelism();
+		Deque<PendingBlock> pending = new ArrayDeque<PendingBlock>(maxPending);
+		CountingOutputStream out = new CountingOutputStream(
+				new BufferedOutputStream(new FileOutputStream(archive), BUFFER_SIZE));
+		try {
+			for (File file : files) {
+				Entry entry = new Entry();
+				entry.name = file.getAbsolutePath().substring(basePath.length() + 1)
+						.replace(File.separatorChar, '/').getBytes("UTF-8");
+				entry.dosTime = toDosTime(file.lastModified());
+				entries.add(entry);
+
+				CRC32 crc = new CRC32();
+				InputStream in = new FileInputStream(file);
+				try {
+					byte[] previous = null;
+					byte[] current = readBlock(in);
+					while (true) {
+						byte[] next = (current.length == BLOCK_SIZE) ? readBlock(in) : null;
+						boolean last = (next == null) || (next.length == 0);
+						crc.update(current, 0, current.length);
+						entry.size += current.length;
+						if (entry.size > MAX_SIZE) {
+							throw new IOException("File is too large to be packed (" + file.getName() + ")");
+						}
+						if (last) {
+							entry.crc = crc.getValue();
+						}
+						if (pending.size() >= maxPending) {
+							writeBlock(out, pending.poll());
+						}
+						pending.add(new PendingBlock(entry, Scheduler.getInstance().submit(
+								new BlockCompressor(previous, current, level, last)), previous == null, last));
+						if (last) {
+							break;
+						}
+						previous = current;
+						current = next;
+					}
+				} finally {
+					in.close();
+				}
+			}
+			while (!pending.isEmpty()) {
+				writeBlock(out, pending.poll());
+			}
+
+			long directoryOffset = out.count;
+			for (Entry entry : entries) {
+				writeCentralHeader(out, entry);
+			}
+			long directorySize = out.count - directoryOffset;
+			if (out.count > MAX_SIZE) {
+				throw new IOException("Archive is too large");
+			}
+			writeInt(out, 0x06054b50);
+			writeShort(out, 0);
+			writeShort(out, 0);
+			writeShort(out, entries.size());
+			writeShort(out, entries.size());
+			writeInt(out, directorySize);
+			writeInt(out, directoryOffset);
+			writeShort(out, 0);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read next block of file.
+	 *
+	 * @param in file contents
+	 * @return Block of at most ParallelZipWriter::BLOCK_SIZE bytes (shorter only at end of file).
+	 * @throws IOException in case file cannot be read
+	 */
+	private static byte[] readBlock (InputStream in) throws IOException {
+		byte[] block = new byte[BLOCK_SIZE];
+		int length = 0;
+		int count;
+		while ((length < BLOCK_SIZE) && ((count = in.read(block, length, BLOCK_SIZE - length)) != -1)) {
+			length += count;
+		}
+		if (length < BLOCK_SIZE) {
+			byte[] shortBlock = new byte[length];
+			System.arraycopy(block, 0, shortBlock, 0, length);
+			return shortBlock;
+		}
+		return block;
+	}
+
+	/**
+	 * Wait for compressed block and write it to archive (with local header before
+	 * first block of entry and data descriptor after last one).
+	 *
+	 * @param out archive stream
+	 * @param pendingBlock block being compressed
+	 * @throws IOException in case compression failed or archive cannot be written
+	 */
+	private static void writeBlock (CountingOutputStream out, PendingBlock pendingBlock) throws IOException {
+		Entry entry = pendingBlock.entry;
+		byte[] compressed = getBlock(pendingBlock.block);
+		if (pendingBlock.first) {
+			entry.offset = out.count;
+			writeLocalHeader(out, entry);
+		}
+		out.write(compressed);
+		entry.compressedSize += compressed.length;
+		if (pendingBlock.last) {
+			writeInt(out, 0x08074b50);
+			writeInt(out, entry.crc);
+			writeInt(out, entry.compressedSize);
+			writeInt(out, entry.size);
+		}
+	}
+
+	/**
+	 * Wait for compressed block.
+	 *
+	 * @param block pending compression
+	 * @return Compressed block.
+	 * @throws IOException in case compression failed or was interrupted
+	 */
+	private static byte[] getBlock (Future<byte[]> block) throws IOException {
+		try {
+			return Scheduler.getInstance().await(block);
+		} catch (InterruptedException e) {
+			throw new IOException("Compression was interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Compression failed", e.getCause());
+		}
+	}
+
+	/**
+	 * Write local file header of entry (checksum and sizes are in data descriptor).
+	 */
+	private static void writeLocalHeader (OutputStream out, Entry entry) throws IOException {
+		writeInt(out, 0x04034b50);
+		writeShort(out, VERSION);
+		writeShort(out, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR);
+		writeShort(out, METHOD_DEFLATED);
+		writeInt(out, entry.dosTime);
+		writeInt(out, 0);
+		writeInt(out, 0);
+		writeInt(out, 0);
+		writeShort(out, entry.name.length);
+		writeShort(out, 0);
+		out.write(entry.name);
+	}
+
+	/**
+	 * Write central directory header of entry.
+	 */
+	private static void writeCentralHeader (OutputStream out, Entry entry) throws IOException {
+		writeInt(out, 0x02014b50);
+		writeShort(out, VERSION);
+		writeShort(out, VERSION);
+		writeShort(out, FLAG_UTF8 | FLAG_DATA_DESCRIPTOR);
+		writeShort(out, METHOD_DEFLATED);
+		writeInt(out, entry.dosTime);
+		writeInt(out, entry.crc);
+		writeInt(out, entry.compressedSize);
+		writeInt(out, entry.size);
+		writeShort(out, entry.name.length);
+		writeShort(out, 0);
+		writeShort(out, 0);
+		writeShort(out, 0);
+		writeShort(out, 0);
+		writeInt(out, 0);
+		writeInt(out, entry.offset);
+		out.write(entry.name);
+	}
+
+	/**
+	 * Write 16-bit little-endian value.
+	 */
+	private static void writeShort (OutputStream out, int value) throws IOException {
+		out.write(value & 0xFF);
+		out.write((value >>> 8) & 0xFF);
+	}
+
+	/**
+	 * Write 32-bit little-endian value.
+	 */
+	private static void writeInt (OutputStream out, long value) throws IOException {
+		writeShort(out, (int) (value & 0xFFFF));
+		writeShort(out, (int) ((value >>> 16) & 0xFFFF));
+	}
+
+	/**
+	 * Convert time to MS-DOS date and time format (date in upper 16 bits).
+	 *
+	 * @param time time in milliseconds since epoch
+	 * @return MS-DOS date and time.
+	 */
+	private static int toDosTime (long time) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(time);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980) {
+			return (1 << 21) | (1 << 16);
+		}
+		return ((year - 1980) << 25)
+				| ((calendar.get(Calendar.MONTH) + 1) << 21)
+				| (calendar.get(Calendar.DAY_OF_MONTH) << 16)
+				| (calendar.get(Calendar.HOUR_OF_DAY) << 11)
+				| (calendar.get(Calendar.MINUTE) << 5)
+				| (calendar.get(Calendar.SECOND) >> 1);
+	}
+
+	/**
+	 * Compression task of single block.
+	 */
+	private static final class BlockCompressor implements Callable<byte[]> {
+
+		private final byte[] previous; ///< previous block of file (null for first block)
+		private final byte[] data; ///< block contents
+		private final int level; ///< compression level
+		private final boolean last; ///< true if block is last in file
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param previous previous block of file (null for first block)
+		 * @param data block contents
+		 * @param level compression level
+		 * @param last true if block is last in file
+		 */
+		public BlockCompressor (byte[] previous, byte[] data, int level, boolean last) {
+			this.previous = previous;
+			this.data = data;
+			this.level = level;
+			this.last = last;
+		}
+
+		/**
+		 * Compress block to raw deflate data (ending with sync flush unless block is last).
+		 *
+		 * @return Compressed block.
+		 */
+		public byte[] call () {
+			Deflater deflater = new Deflater(this.level, true);
+			try {
+				if (this.previous != null) {
+					int dictionaryLength = Math.min(DICTIONARY_SIZE, this.previous.length);
+					deflater.setDictionary(this.previous, this.previous.length - dictionaryLength, dictionaryLength);
+				}
+				deflater.setInput(this.data, 0, this.data.length);
+				ByteArrayOutputStream out = new ByteArrayOutputStream(this.data.length / 2 + 64);
+				byte[] buffer = new byte[BUFFER_SIZE];
+				int count;
+				if (this.last) {
+					deflater.finish();
+					while (!deflater.finished()) {
+						count = deflater.deflate(buffer);
+						out.write(buffer, 0, count);
+					}
+				} else {
+					do {
+						count = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+						out.write(buffer, 0, count);
+					} while (count == buffer.length);
+				}
+				return out.toByteArray();
+			} finally {
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Output stream counting written bytes.
+	 */
+	private static final class CountingOutputStream extends OutputStream {
+
+		private final OutputStream out; ///< underlying stream
+		private long count = 0; ///< number of written bytes
+
+		public CountingOutputStream (OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void write (int b) throws IOException {
+			this.out.write(b);
+			++this.count;
+		}
+
+		@Override
+		public void write (byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.count += len;
+		}
+
+		@Override
+		public void close () throws IOException {
+			this.out.close();
+		}
+	}
+}
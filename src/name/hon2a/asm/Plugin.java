@@ -1,13 +1,24 @@
 package name.hon2a.asm;
 
-import org.apache.ecs.xml.XML;
-import org.apache.ecs.xml.XMLDocument;
-
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * Abstract plugin for Assignment Manager.
@@ -19,8 +30,9 @@ import java.util.regex.Pattern;
  * criteria.
  *
  * Plugins are standalone scripts to be run from console or from other plugins.
- * Sole access point, the run() method, accepts array of strings, so it can be
- * called directly from main application method.
+ * Access point, the run() method, accepts array of strings, so it can be
+ * called directly from main application method. Response can be either returned
+ * as string or streamed to output stream.
  *
  * @author %hon2a
  */
@@ -86,10 +98,24 @@ public abstract class Plugin {
 	 */
 	private static int MIN_ARGUMENTS = 1;
 
+	/// name prefix of output folders kept for caller (not removed as orphaned temporary folders)
+	private static final String OUTPUT_FOLDER_PREFIX = "asmOutputFolder_";
+	/// options changing plugin response (part of result cache keys and test fingerprints, see Plugin::getPluginId())
+	static final String[] RESULT_OPTIONS = { "outputPacking", "testTimeout", "pluginTimeout", "cpuBudget",
+			"allocationBudget", "isolation" };
+
 	
 	private File dataFolder; ///< temporary folder with unpacked submission files
+	private File sourceFolder; ///< root of submission files (data folder or single folder inside it)
+	private ScratchSpace.Quota dataQuota; ///< quota of unpacked submission files
 	private File outputFolder; ///< temporary folder for plugin output
+	private FileSystem submission; ///< submission archive opened as file system (see Plugin::getSourceFile())
+	private Path submissionRoot; ///< root of submission files in Plugin::submission
+	private Set<String> extractedPaths = new HashSet<String>(); ///< submission paths already extracted to disk
 	private Map<String, Criterion> criteria = new HashMap<String, Criterion>(); ///< plugin criteria
+	private Map<String, Long> timings = new LinkedHashMap<String, Long>(); ///< durations of run phases (in nanoseconds)
+	private boolean cleanedUp = false; ///< true if temporary folders have been handed for removal
+	private volatile boolean cacheable = true; ///< false if results must not be stored in ResultCache
 
 	protected Map<String, String> config; ///< plugin config
 
@@ -129,10 +155,11 @@ public abstract class Plugin {
 	protected abstract void execute () throws PluginException;
 
 	/**
-	 * Run plugin (sole public access point).
+	 * Run plugin and return response as string.
 	 *
-	 * Plugins must be launched using this method. If plugin is standalone executable,
-	 * all command-line arguments should be passed to this function.
+	 * Plugins can be launched using this method or Plugin::run(String[], OutputStream).
+	 * If plugin is standalone executable, all command-line arguments should be
+	 * passed to this function.
 	 * 
 	 * @param args command-line arguments.
 	 * First argument must be submission zip archive path. All other arguments are
@@ -140,60 +167,411 @@ public abstract class Plugin {
 	 * @return XML string conform to Assignment Manager specs
 	 */
 	public final String run (String [] args) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			this.run(args, out);
+			return out.toString(ReplyWriter.ENCODING);
+		} catch (IOException e) {
+			// cannot happen when writing to memory
+			return Plugin.makeErrorReply(Utils.getMessageTrace(e));
+		}
+	}
+
+	/**
+	 * Run plugin and write response to output stream (main access point).
+	 *
+	 * Response is written in UTF-8 after plugin has finished. Output stream is
+	 * flushed, but not closed.
+	 *
+	 * @param args command-line arguments.
+	 * First argument must be submission zip archive path. All other arguments are
+	 * passed to Plugin::setUp method.
+	 * @param out stream for XML response conform to Assignment Manager specs
+	 * @throws IOException in case response cannot be written
+	 * @see Plugin::writeReply()
+	 */
+	public final void run (String [] args, OutputStream out) throws IOException {
+		long startTime = System.nanoTime();
+		Map<String, Results> results = null;
+		File outputFile = null;
+		String error = null;
 		try {
-			if ((args == null) || (args.length < MIN_ARGUMENTS)) {
-				throw new PluginUseException("Data file argument missing");
+			try {
+				if ((args == null) || (args.length < MIN_ARGUMENTS)) {
+					throw new PluginUseException("Data file argument missing");
+				}
+
+				File dataFile = new File(args[0]);
+				String[] params = new String[args.length - 1];
+				System.arraycopy(args, 1, params, 0, params.length);
+
+				ResultCache cache = ResultCache.getInstance();
+				String cacheKey = null;
+				ResultCache.Entry cached = null;
+				if (cache.isEnabled()) {
+					long time = System.nanoTime();
+					cacheKey = cache.computeKey(dataFile, this.getPluginId(), this.config, params);
+					cached = cache.lookup(cacheKey, this.createUnpackedOutputFolderPath());
+					this.markPhase("cacheLookup", time);
+				}
+				if (cached != null) {
+					results = this.restoreResults(cached.criteria);
+					outputFile = cached.output;
+				} else {
+					results = this.evaluate(dataFile, params);
+					long time = System.nanoTime();
+					outputFile = this.packOutput();
+					time = this.markPhase("packOutput", time);
+					if ((cacheKey != null) && this.cacheable) {
+						this.storeResults(cache, cacheKey, results, outputFile);
+						this.markPhase("cacheStore", time);
+					}
+				}
+			} catch (PluginException e) {
+				error = e.getMessage();
+			} catch (Exception e) {
+				if (e.getCause() instanceof QuotaExceededException) {
+					// thrown by Plugin::getSourceFile() if submission is extracted on demand
+					error = "Submission is too large: " + e.getCause().getMessage();
+				} else {
+					error = new StringBuilder("Java Exception: ")
+						  .append(e.getMessage())
+	                      .append(e.getClass().toString())
+	                      .append(e.toString())
+	                      .append(Utils.EOL_STRING)
+						  .toString();
+				}
+			}
+			this.markPhase("cleanup", this.cleanUp());
+			this.markPhase("total", startTime);
+			this.writeReply(out, outputFile, results, error);
+		} finally {
+			this.cleanUp();
+		}
+	}
+
+	/**
+	 * Close submission archive and remove temporary folders (only once).
+	 *
+	 * @return Time when cleanup started (see Plugin::markPhase()).
+	 * @see Plugin::removeTempFolder()
+	 */
+	private long cleanUp () {
+		long startTime = System.nanoTime();
+		if (this.cleanedUp) {
+			return startTime;
+		}
+		this.cleanedUp = true;
+		if (this.submission != null) {
+			try {
+				this.submission.close();
+			} catch (IOException e) {
 			}
+		}
+		this.removeTempFolder(this.dataFolder);
+		this.removeTempFolder(this.outputFolder);
+		return startTime;
+	}
+
+	/**
+	 * Prevent results of current run from being stored in ResultCache.
+	 *
+	 * Used when results depend on conditions of the run rather than on the
+	 * submission alone (e.g. test abandoned after its deadline or student code
+	 * exceeding its budget on busy machine), so that the next run of the same
+	 * submission is evaluated again.
+	 */
+	protected final void markUncacheable () {
+		this.cacheable = false;
+	}
+
+	/**
+	 * Record duration of run phase.
+	 *
+	 * Durations are reported in plugin response or logged to standard error output
+	 * if @c timings option is set to @c reply or @c log respectively (see
+	 * Plugin::writeReply()). Phases recorded more than once (e.g. by tests of the
+	 * same name) are summed.
+	 *
+	 * @param phase phase name
+	 * @param duration phase duration (in nanoseconds)
+	 */
+	protected final void addTiming (String phase, long duration) {
+		synchronized (this.timings) {
+			Long previous = this.timings.get(phase);
+			this.timings.put(phase, (previous == null) ? duration : (previous + duration));
+		}
+	}
 
-			this.dataFolder = Utils.createTempDirectory();
-			File dataFile = new File(args[0]);
-			Utils.unzip(dataFile, this.dataFolder);
+	/**
+	 * Record duration of run phase that has just finished.
+	 *
+	 * @param phase phase name
+	 * @param startTime System::nanoTime() value at start of phase
+	 * @return Current System::nanoTime() value (start of next phase).
+	 * @see Plugin::addTiming()
+	 */
+	protected final long markPhase (String phase, long startTime) {
+		long time = System.nanoTime();
+		this.addTiming(phase, time - startTime);
+		return time;
+	}
 
-            // If the contents is a single folder, extract it.
+	/**
+	 * Unpack submission, set up and execute plugin and check all plugin criteria.
+	 *
+	 * @param dataFile submission archive
+	 * @param params plugin arguments (without submission path)
+	 * @return Map of results identified by criteria names.
+	 * @throws PluginException
+	 * @throws IOException
+	 */
+	private Map<String, Results> evaluate (File dataFile, String[] params) throws PluginException, IOException {
+		long time = System.nanoTime();
+		this.dataFolder = Utils.createTempDirectory();
+		this.sourceFolder = this.dataFolder;
+		this.dataQuota = ScratchSpace.getInstance().createQuota(this.dataFolder);
+		if (Boolean.parseBoolean(this.getOption("extractOnDemand", "false"))) {
+			this.openSubmission(dataFile);
+			time = this.markPhase("openSubmission", time);
+		} else {
+			try {
+				Utils.unzip(dataFile, this.dataFolder, this.dataQuota);
+			} catch (QuotaExceededException e) {
+				throw new PluginException("Submission is too large: " + e.getMessage(), e);
+			}
+			time = this.markPhase("unzip", time);
+
+            // If the contents is a single folder, use it as the submission root.
             // Sometimes students zip not just the contents of the homework, but the enclosing folder as well.
-            // This will accept that.
+            // This will accept that without copying the folder contents again.
             File[] files = this.dataFolder.listFiles();
             if (files.length == 1 && files[0].isDirectory())
             {
-                Utils.copyDirectory(files[0], this.dataFolder);
+                this.sourceFolder = files[0];
             }
+			time = this.markPhase("singleFolder", time);
+		}
 
-			this.outputFolder = Utils.createTempDirectory();
+		this.outputFolder = Utils.createTempDirectory();
 
-			String[] params = new String[args.length - 1];
-			System.arraycopy(args, 1, params, 0, params.length);
-			this.setUp(params);
+		this.setUp(params);
+		time = this.markPhase("setUp", time);
+		this.execute();
+		time = this.markPhase("execute", time);
 
-			this.execute();
+		Map<String, Results> results = this.assessResults();
+		this.markPhase("assessResults", time);
+		return results;
+	}
+
+	/**
+	 * Retrieve plugin identifier used in result cache keys.
+	 *
+	 * Options that change response (output packing mode, deadlines, budgets and
+	 * isolation of student code) may be set as framework settings instead of
+	 * plugin configuration, so their effective values are part of identifier.
+	 *
+	 * @return Plugin class name, version and values of Plugin::RESULT_OPTIONS.
+	 * @see Plugin::getVersion()
+	 */
+	private String getPluginId () {
+		StringBuilder id = new StringBuilder(this.getClass().getName()).append("@").append(this.getVersion());
+		for (String option : RESULT_OPTIONS) {
+			id.append(" ").append(option).append("=").append(this.getOption(option, ""));
+		}
+		return id.toString();
+	}
 
-			return this.makeReplyXml();
-		} catch (PluginException e) {
-			return this.makeErrorXml(e.getMessage());
+	/**
+	 * Retrieve plugin version.
+	 *
+	 * Results cached by ResultCache are reused only by plugins of the same version.
+	 * Default version consists of implementation version of plugin package (from
+	 * jar manifest) and modification time of plugin jar or class folder, so that
+	 * rebuilt plugins never reuse stale results.
+	 *
+	 * @return Plugin version string.
+	 */
+	protected String getVersion () {
+		StringBuilder version = new StringBuilder();
+		Package pluginPackage = this.getClass().getPackage();
+		if ((pluginPackage != null) && (pluginPackage.getImplementationVersion() != null)) {
+			version.append(pluginPackage.getImplementationVersion());
+		}
+		try {
+			File location = new File(this.getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+			version.append("/").append(location.lastModified());
 		} catch (Exception e) {
-			return this.makeErrorXml(new StringBuilder("Java Exception: ")
-					  .append(e.getMessage())
-                      .append(e.getClass().toString())
-                      .append(e.toString())
-                      .append(Utils.EOL_STRING)
-					  .toString());
-		} finally {
-			if (this.dataFolder != null) {
-				Utils.removeDirectoryAndContents(this.dataFolder);
+		}
+		return version.toString();
+	}
+
+	/**
+	 * Convert cached criteria results to plugin results.
+	 *
+	 * @param cached cached criteria results
+	 * @return Map of results identified by criteria names.
+	 */
+	private Map<String, Results> restoreResults (Map<String, ResultCache.CriterionResult> cached) {
+		Map<String, Results> results = new HashMap<String, Results>(cached.size());
+		for (Map.Entry<String, ResultCache.CriterionResult> criterion : cached.entrySet()) {
+			ResultCache.CriterionResult r = criterion.getValue();
+			results.put(criterion.getKey(), new Results(r.passed, r.fulfillment, r.details));
+		}
+		return results;
+	}
+
+	/**
+	 * Store plugin results in result cache.
+	 *
+	 * Criterion details are stored with temporary folder paths of this run
+	 * replaced (see Plugin::prepareErrorDetails()), as restored results are
+	 * reported by later runs with different temporary folders. Failure to store
+	 * results is reported to standard error output, but does not affect plugin
+	 * response.
+	 *
+	 * @param cache result cache
+	 * @param key cache key
+	 * @param results map of criteria results
+	 * @param outputFile output archive or unpacked output folder (may be null)
+	 */
+	private void storeResults (ResultCache cache, String key, Map<String, Results> results, File outputFile) {
+		Map<String, ResultCache.CriterionResult> criteria
+				= new HashMap<String, ResultCache.CriterionResult>(results.size());
+		for (Map.Entry<String, Results> resultPair : results.entrySet()) {
+			Results r = resultPair.getValue();
+			criteria.put(resultPair.getKey(), new ResultCache.CriterionResult(r.passed, r.fulfillment,
+					this.prepareErrorDetails(r.details)));
+		}
+		try {
+			cache.store(key, new ResultCache.Entry(criteria, outputFile));
+		} catch (IOException e) {
+			System.err.println(Utils.indentError("Plugin results could not be cached:", Utils.getMessageTrace(e)));
+		}
+	}
+
+	/**
+	 * Remove temporary folder and its contents.
+	 *
+	 * Unless @c asyncCleanup option is set to false, folder is handed to Reaper
+	 * and removed in background, so that removal does not delay plugin response.
+	 *
+	 * @param folder folder to be removed (nothing happens if null)
+	 */
+	private void removeTempFolder (File folder) {
+		if (folder == null) {
+			return;
+		}
+		if (Boolean.parseBoolean(this.getOption("asyncCleanup", "true"))) {
+			Reaper.getInstance().schedule(folder);
+		} else if (Utils.removeDirectoryAndContents(folder)) {
+			ScratchSpace.getInstance().release(folder);
+		}
+	}
+
+	/**
+	 * Retrieve plugin option.
+	 *
+	 * Options are looked up in plugin config first and then in framework settings
+	 * (see Utils::getSetting()).
+	 *
+	 * @param name option name
+	 * @param defaultValue value to be used if option is not set
+	 * @return Option value or default value.
+	 */
+	protected final String getOption (String name, String defaultValue) {
+		if ((this.config != null) && this.config.containsKey(name)) {
+			return this.config.get(name);
+		}
+		return Utils.getSetting(name, defaultValue);
+	}
+
+	/**
+	 * Retrieve effective values of options that change plugin response.
+	 *
+	 * @return Values of Plugin::RESULT_OPTIONS that are set (in plugin configuration or as settings).
+	 * @see Test::getOption()
+	 */
+	final Map<String, String> getResultOptions () {
+		Map<String, String> options = new HashMap<String, String>();
+		for (String option : RESULT_OPTIONS) {
+			String value = this.getOption(option, null);
+			if (value != null) {
+				options.put(option, value);
+			}
+		}
+		return options;
+	}
+
+	/**
+	 * Open submission archive as file system instead of unpacking it.
+	 *
+	 * Used if @c extractOnDemand option is set. Submission files are then extracted
+	 * to disk only when they are requested using Plugin::getSourceFile(). If
+	 * archive contains single folder, submission root is set to that folder
+	 * (students sometimes zip the enclosing folder as well).
+	 *
+	 * @param dataFile submission archive
+	 * @throws IOException in case archive cannot be opened
+	 */
+	private void openSubmission (File dataFile) throws IOException {
+		this.submission = FileSystems.newFileSystem(dataFile.toPath(), (ClassLoader) null);
+		this.submissionRoot = this.submission.getPath("/");
+
+		DirectoryStream<Path> rootContents = Files.newDirectoryStream(this.submissionRoot);
+		try {
+			Iterator<Path> iterator = rootContents.iterator();
+			Path first = iterator.hasNext() ? iterator.next() : null;
+			if ((first != null) && !iterator.hasNext() && Files.isDirectory(first)) {
+				this.submissionRoot = first;
 			}
-			if (this.outputFolder != null) {
-				Utils.removeDirectoryAndContents(this.outputFolder);
+		} finally {
+			rootContents.close();
+		}
+	}
+
+	/**
+	 * Extract submission file or folder to data folder unless it has been extracted
+	 * already (only used if submission is opened as file system).
+	 *
+	 * @param path relative path of source file
+	 * @throws IOException in case file cannot be extracted
+	 */
+	private synchronized void extractSourceFile (String path) throws IOException {
+		Path entry = this.submissionRoot.resolve(path).normalize();
+		String key = this.submissionRoot.relativize(entry).toString();
+		for (String extracted : this.extractedPaths) {
+			if (extracted.equals("") || key.equals(extracted) || key.startsWith(extracted + "/")) {
+				return;
 			}
 		}
+		if (!Files.exists(entry)) {
+			return;
+		}
+		Utils.extractPath(entry, new File(this.sourceFolder, key), this.dataQuota);
+		this.extractedPaths.add(key);
 	}
 
 	/**
 	 * Translate relative path of source file to file descriptor.
 	 *
+	 * Paths are relative to submission root, which is the single folder contained
+	 * in submission archive if there is no other content. If submission is opened as file system, requested file or folder is extracted
+	 * to disk first.
+	 *
 	 * @param path relative path of source file
 	 * @return Source file descriptor.
 	 */
 	protected final File getSourceFile (String path) {
-		return new File(this.dataFolder, path);
+		if (this.submission != null) {
+			try {
+				this.extractSourceFile(path);
+			} catch (IOException e) {
+				throw new RuntimeException("Source file " + path + " cannot be extracted", e);
+			}
+		}
+		return new File(this.sourceFolder, path);
 	}
 
 	/**
@@ -241,40 +619,84 @@ public abstract class Plugin {
 	}
 
 	/**
-	 * Compress all contents of output folder into one zip archive.
+	 * Pack all contents of output folder according to @c outputPacking option.
 	 *
-	 * @return File descriptor of output archive.
-	 * @throws PluginException
+	 * Supported packing modes:
+	 * - @c deflate (default) - compressed zip archive,
+	 * - @c stored - zip archive without compression (for small or already
+	 *   compressed output),
+	 * - @c parallel - compressed zip archive, compressed on all processors
+	 *   (see ParallelZipWriter, for large output),
+	 * - @c none - no archive, output folder is kept and its files are listed
+	 *   in response instead (caller is responsible for its removal).
+	 *
+	 * @return File descriptor of output archive (or output folder if output is not packed).
+	 * @throws PluginException in case packing mode is not supported
 	 * @throws IOException
 	 */
 	private File packOutput () throws PluginException, IOException {
 		File outputFile = null;
 		if ((this.outputFolder != null) && (this.outputFolder.isDirectory())
 				&& (this.outputFolder.list().length > 0)) {
+			String packing = this.getOption("outputPacking", "deflate");
+			if (packing.equals("none")) {
+				outputFile = this.createUnpackedOutputFolderPath();
+				Files.move(this.outputFolder.toPath(), outputFile.toPath());
+				ScratchSpace.getInstance().release(this.outputFolder);
+				this.outputFolder = null;
+				return outputFile;
+			}
 			outputFile = Utils.createTempFile("zip");
-			Utils.zip(this.outputFolder, outputFile);
+			if (packing.equals("deflate")) {
+				Utils.zip(this.outputFolder, outputFile, false);
+			} else if (packing.equals("stored")) {
+				Utils.zip(this.outputFolder, outputFile, true);
+			} else if (packing.equals("parallel")) {
+				ParallelZipWriter.zip(this.outputFolder, outputFile, Deflater.DEFAULT_COMPRESSION);
+			} else {
+				outputFile.delete();
+				throw new PluginUseException("Unsupported output packing: " + packing);
+			}
 		}
 		return outputFile;
 	}
 
+	/**
+	 * Create path of output folder kept for caller if output is not packed.
+	 *
+	 * @return Path of non-existent folder in scratch space.
+	 * @see Plugin::packOutput()
+	 */
+	private File createUnpackedOutputFolderPath () {
+		return new File(ScratchSpace.getInstance().getRoot(), OUTPUT_FOLDER_PREFIX + System.nanoTime());
+	}
+
+	/**
+	 * Prepare error details for response (hide paths of temporary folders).
+	 *
+	 * @param str error details
+	 * @return Error details with temporary folder paths replaced by '.'.
+	 */
 	private String prepareErrorDetails (String str) {
 		if (str == null) {
 			return "";
 		}
-		str = Utils.escapeXml(str);
-		if (this.dataFolder != null) {
-			try {
-				str = str.replaceAll("(?i)" + Pattern.quote(this.dataFolder.getCanonicalPath()), ".");
-			} catch (IOException e) {
+		File[] folders = new File[] { this.sourceFolder, this.dataFolder };
+		for (File folder : folders) {
+			if (folder != null) {
+				try {
+					str = str.replaceAll("(?i)" + Pattern.quote(folder.getCanonicalPath()), ".");
+				} catch (IOException e) {
+				}
 			}
 		}
 		return str;
 	}
 
 	/**
-	 * Create and return regular plugin response XML conform to Assignment Manager specs.
+	 * Write plugin response XML conform to Assignment Manager specs.
 	 *
-	 * Response structure:
+	 * Regular response structure:
 	 * @code
 	 * <plugin-reply>
 	 *		<output>
@@ -289,54 +711,110 @@ public abstract class Plugin {
 	 * </plugin-reply>
 	 * @endcode
 	 * 
-	 * Output is optional. Number of criterion tags is not limited.
+	 * Output is optional. Number of criterion tags is not limited. If output is
+	 * not packed (see Plugin::packOutput()), output element lists output folder
+	 * and all output files instead:
+	 * @code
+	 * <output>
+	 *		<folder>OUTPUT_FOLDER_PATH</folder>
+	 *		<file>OUTPUT_FILE_PATH</file>
+	 *		...
+	 * </output>
+	 * @endcode
+	 *
 	 *
 	 * CRITERION_SUCCESS is string representation of boolean
 	 * 
 	 * CRITERION_FULFILLMENT_PERCENTAGE is integer between 0 and 100 (inclusive)
 	 *
-	 * @return Plugin response XML string.
-	 * @throws PluginException
-	 * @throws IOException
+	 * Error response structure (used if error is set):
+	 * @code
+	 * <plugin-reply>
+	 *		<error>ERROR_DETAILS</error>
+	 * </plugin-reply>
+	 * @endcode
+	 *
+	 * If @c timings option is set to @c reply, both responses end with durations
+	 * of run phases (see Plugin::addTiming()) in nanoseconds:
+	 * @code
+	 * <timings>
+	 *		<phase name="PHASE_NAME">PHASE_DURATION</phase>
+	 *		...
+	 * </timings>
+	 * @endcode
+	 * If it is set to @c log, durations are written to standard error output
+	 * instead, as single line starting with @c asm-timings .
+	 *
+	 * @param out response stream
+	 * @param outputFile output archive or unpacked output folder (may be null)
+	 * @param results map of criteria results (may be null)
+	 * @param error error details (null for regular response)
+	 * @throws IOException in case response cannot be written
 	 */
-	private String makeReplyXml () throws PluginException, IOException {
-		Map<String, Results> results = this.assessResults();
-		File outputFile = this.packOutput();
-
-		XML reply = new XML("plugin-reply");
-		if (outputFile != null) {
-			reply.addElement(new XML("output")
-				.addElement(new XML("file").addElement(outputFile.getAbsolutePath())));
+	private void writeReply (OutputStream out, File outputFile, Map<String, Results> results, String error)
+			throws IOException {
+		ReplyWriter reply = new ReplyWriter(out);
+		if (error != null) {
+			reply.writeError(this.prepareErrorDetails(error));
+		} else {
+			if ((outputFile != null) && outputFile.isDirectory()) {
+				List<String> files = new ArrayList<String>();
+				for (File file : Utils.listFiles(outputFile)) {
+					files.add(file.getAbsolutePath());
+				}
+				reply.writeOutputFolder(outputFile.getAbsolutePath(), files);
+			} else if (outputFile != null) {
+				reply.writeOutput(outputFile.getAbsolutePath());
+			}
+			for (Map.Entry<String, Results> resultPair : results.entrySet()) {
+				Results r = resultPair.getValue();
+				reply.writeCriterion(resultPair.getKey(), r.passed, r.fulfillment,
+						this.prepareErrorDetails(r.details));
+			}
 		}
-		for (Map.Entry<String, Results> resultPair : results.entrySet()) {
-			Results r = resultPair.getValue();
-			reply.addElement(new XML("criterion")
-				.addXMLAttribute("name", resultPair.getKey())
-				.addElement(new XML("passed").addElement(Boolean.toString(r.passed)))
-				.addElement(new XML("fulfillment").addElement(Integer.toString(r.fulfillment)))
-				.addElement(new XML("details").addElement(this.prepareErrorDetails(r.details))));
+		String timingsMode = this.getOption("timings", "none");
+		if (timingsMode.equals("reply")) {
+			reply.writeTimings(this.getTimings());
+		} else if (timingsMode.equals("log")) {
+			StringBuilder line = new StringBuilder("asm-timings ").append(this.getClass().getName());
+			for (Map.Entry<String, Long> timing : this.getTimings().entrySet()) {
+				line.append(" ").append(timing.getKey()).append("=").append(timing.getValue());
+			}
+			System.err.println(line.toString());
 		}
-		return new XMLDocument().addElement(reply).toString();
+		reply.close();
 	}
 
 	/**
-	 * Create and return plugin error response XML conform to Assignment Manager specs.
-	 * 
-	 * Response structure:
-	 * @code
-	 * <plugin-reply>
-	 *		<error>ERROR_DETAILS</error>
-	 * </plugin-reply>
-	 * @endcode
+	 * Retrieve durations of run phases recorded so far.
+	 *
+	 * @return Copy of map of phase durations (in nanoseconds) in order of recording.
+	 */
+	protected final Map<String, Long> getTimings () {
+		synchronized (this.timings) {
+			return new LinkedHashMap<String, Long>(this.timings);
+		}
+	}
 
+	/**
+	 * Create plugin error response for errors that occur outside of plugin run
+	 * (e.g. when plugin cannot be instantiated by long-running driver).
+	 *
 	 * @param error error details
 	 * @return Plugin response XML string.
+	 * @see Plugin::writeReply()
 	 */
-	private String makeErrorXml (String error) {
-		XMLDocument xml = new XMLDocument()
-			.addElement(new XML("plugin-reply")
-				.addElement(new XML("error").addElement(this.prepareErrorDetails(error))));
-		return xml.toString();
+	static String makeErrorReply (String error) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			ReplyWriter reply = new ReplyWriter(out);
+			reply.writeError(error);
+			reply.close();
+			return out.toString(ReplyWriter.ENCODING);
+		} catch (IOException e) {
+			// cannot happen when writing to memory
+			return "";
+		}
 	}
 
 	/**
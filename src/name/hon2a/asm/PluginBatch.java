@@ -0,0 +1,263 @@
+package name.hon2a.asm;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Plugin driver grading many submissions in single JVM using shared Scheduler.
+ *
+ * Usage:
+ * @code
+ * java -cp PLUGIN_JAR name.hon2a.asm.PluginBatch PLUGIN_CLASS INPUT [-threads COUNT] [-output FILE] [PLUGIN_PARAMS...]
+ * @endcode
+ *
+ * INPUT is either folder (all zip archives inside are graded) or manifest file
+ * with one submission path per line (relative paths are resolved against folder
+ * of manifest). Every submission is graded by fresh plugin instance with
+ * PLUGIN_PARAMS passed as additional plugin arguments. Submissions run as tasks
+ * of Scheduler, so they share processors with their own tests. Number of
+ * concurrently running tasks can be set by @c -threads (shortcut for
+ * @c asm.parallelism setting) and defaults to number of available processors.
+ *
+ * Responses are saved as soon as their submissions are graded, so they need
+ * not be held in memory until the whole batch finishes. By default, response
+ * of every submission is saved next to it as @c SUBMISSION.reply.xml . If output
+ * file is given, all responses are written to it instead in single document
+ * (in order in which submissions were graded):
+ * @code
+ * <batch-reply>
+ *		<submission file="SUBMISSION_PATH"><plugin-reply>...</plugin-reply></submission>
+ *		...
+ * </batch-reply>
+ * @endcode
+ *
+ * Submission that cannot be graded (e.g. plugin runs out of memory) gets error
+ * response. If even that response cannot be passed on, failure is reported to
+ * standard error output. Batch exits with status 1 if any submission was left
+ * without response.
+ *
+ * @author %hon2a
+ */
+public class PluginBatch {
+
+	private static final String ENCODING = "UTF-8"; ///< encoding of saved responses
+	private static final String REPLY_SUFFIX = ".reply.xml"; ///< suffix of separate response files
+
+	/**
+	 * Receiver of plugin responses (called from scheduler threads, must be thread-safe).
+	 */
+	public interface ReplyHandler {
+
+		/**
+		 * Process response of graded submission.
+		 *
+		 * @param submission submission archive
+		 * @param reply plugin response XML string
+		 * @throws IOException in case response cannot be saved
+		 */
+		void handle (File submission, String reply) throws IOException;
+	}
+
+	private final PluginFactory factory; ///< factory for plugin instances
+	private final String[] params; ///< additional plugin arguments
+
+	/**
+	 * Default and only constructor.
+	 *
+	 * @param factory factory for plugin instances
+	 * @param params additional plugin arguments passed after submission path
+	 */
+	public PluginBatch (PluginFactory factory, String[] params) {
+		this.factory = factory;
+		this.params = params;
+	}
+
+	/**
+	 * Run batch.
+	 *
+	 * @param args command line arguments (see class description)
+	 */
+	public static void main (String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: PluginBatch PLUGIN_CLASS INPUT [-threads COUNT] [-output FILE] [PLUGIN_PARAMS...]");
+			System.exit(1);
+		}
+
+		File outputFile = null;
+		List<String> params = new ArrayList<String>();
+		for (int i = 2; i < args.length; ++i) {
+			if (args[i].equals("-threads") && (i + 1 < args.length)) {
+				System.setProperty("asm.parallelism", Integer.toString(Math.max(1, Integer.parseInt(args[++i]))));
+			} else if (args[i].equals("-output") && (i + 1 < args.length)) {
+				outputFile = new File(args[++i]);
+			} else {
+				params.add(args[i]);
+			}
+		}
+
+		int failed;
+		try {
+			PluginBatch batch = new PluginBatch(new PluginFactory(args[0]), params.toArray(new String[] {}));
+			List<File> submissions = PluginBatch.listSubmissions(new File(args[1]));
+			if (outputFile == null) {
+				failed = batch.run(submissions, new ReplyHandler() {
+					public void handle (File submission, String reply) throws IOException {
+						PluginBatch.saveReply(new File(submission.getPath() + REPLY_SUFFIX), reply);
+					}
+				});
+			} else {
+				OutputStream output = new BufferedOutputStream(new FileOutputStream(outputFile));
+				try {
+					final ReplyWriter writer = new ReplyWriter(output, "batch-reply");
+					failed = batch.run(submissions, new ReplyHandler() {
+						public void handle (File submission, String reply) throws IOException {
+							synchronized (writer) {
+								writer.writeSubmission(submission.getPath(), reply);
+							}
+						}
+					});
+					writer.close();
+				} finally {
+					output.close();
+				}
+			}
+		} catch (Exception e) {
+			System.err.println(Utils.getMessageTrace(e));
+			System.exit(1);
+			return;
+		}
+		if (failed > 0) {
+			System.err.println(failed + " submission(s) left without response");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Resolve batch input to list of submission archives.
+	 *
+	 * @param input folder with submissions or manifest file
+	 * @return List of submission archives (sorted by name in case of folder).
+	 * @throws PluginUseException in case input is neither readable folder nor manifest file
+	 * @throws IOException in case manifest cannot be read
+	 */
+	public static List<File> listSubmissions (File input) throws PluginUseException, IOException {
+		List<File> submissions = new ArrayList<File>();
+		if (input.isDirectory()) {
+			File[] archives = input.listFiles(new FilenameFilter() {
+				public boolean accept(File dir, String name) {
+					return name.toLowerCase().endsWith(".zip");
+				}
+			});
+			if (archives == null) {
+				throw new PluginUseException("Submission folder " + input.getPath() + " cannot be listed");
+			}
+			Arrays.sort(archives);
+			submissions.addAll(Arrays.asList(archives));
+			return submissions;
+		}
+		if (!input.isFile() || !input.canRead()) {
+			throw new PluginUseException("Batch input " + input.getPath() + " is neither folder nor readable manifest file");
+		}
+
+		BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), ENCODING));
+		try {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				line = line.trim();
+				if (line.equals("")) {
+					continue;
+				}
+				File submission = new File(line);
+				if (!submission.isAbsolute()) {
+					submission = new File(input.getAbsoluteFile().getParentFile(), line);
+				}
+				submissions.add(submission);
+			}
+		} finally {
+			reader.close();
+		}
+		return submissions;
+	}
+
+	/**
+	 * Grade all submissions in parallel and pass every response to handler as soon as it is ready.
+	 *
+	 * Submission whose response could not be passed to handler is reported to
+	 * standard error output.
+	 *
+	 * @param submissions submission archives
+	 * @param handler receiver of responses
+	 * @return Number of submissions left without response.
+	 * @throws InterruptedException in case batch is interrupted while waiting for workers
+	 * @throws IOException in case some response cannot be saved by handler
+	 */
+	public int run (List<File> submissions, final ReplyHandler handler) throws InterruptedException, IOException {
+		Scheduler scheduler = Scheduler.getInstance();
+		List<Future<Object>> futures = new ArrayList<Future<Object>>(submissions.size());
+		for (final File submission : submissions) {
+			final String[] args = new String[this.params.length + 1];
+			args[0] = submission.getAbsolutePath();
+			System.arraycopy(this.params, 0, args, 1, this.params.length);
+			futures.add(scheduler.submit(new Callable<Object>() {
+				public Object call() throws IOException {
+					String reply;
+					try {
+						reply = PluginBatch.this.factory.run(args);
+					} catch (RuntimeException | java.lang.Error e) {
+						// e.g. OutOfMemoryError of single submission should not end whole batch
+						reply = Plugin.makeErrorReply(Utils.getMessageTrace(e));
+					}
+					handler.handle(submission, reply);
+					return null;
+				}
+			}));
+		}
+
+		IOException saveError = null;
+		int failed = 0;
+		for (int i = 0; i < futures.size(); ++i) {
+			try {
+				scheduler.await(futures.get(i));
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException) {
+					if (saveError == null) {
+						saveError = (IOException) e.getCause();
+					}
+				} else {
+					++failed;
+					System.err.println(Utils.indentError("Submission " + submissions.get(i).getPath()
+							+ " was left without response:", Utils.getMessageTrace(e.getCause())));
+				}
+			}
+		}
+		if (saveError != null) {
+			throw saveError;
+		}
+		return failed;
+	}
+
+	/**
+	 * Save plugin response to file.
+	 *
+	 * @param file destination file
+	 * @param reply response XML string
+	 * @throws IOException in case file cannot be saved
+	 */
+	private static void saveReply (File file, String reply) throws IOException {
+		Utils.saveBinaryFile(file, new ByteArrayInputStream(reply.getBytes(ENCODING)));
+	}
+}
@@ -0,0 +1,180 @@
+package name.hon2a.asm;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * Long-running plugin driver that grades submissions without restarting JVM.
+ *
+ * Starting new JVM for every submission means loading and warming up javac,
+ * XML parsers and other plugin dependencies over and over again. Daemon instead
+ * keeps them loaded and runs fresh plugin instance (see PluginFactory) for each
+ * request it receives.
+ *
+ * Usage:
+ * @code
+ * java -cp PLUGIN_JAR name.hon2a.asm.PluginDaemon PLUGIN_CLASS [-port PORT] [-warmup ZIP_PATH]
+ * @endcode
+ *
+ * Requests are read from standard input or, if port is given, from connections
+ * to that port on loopback interface. Every request is single line containing
+ * plugin arguments in the same form as on command line (see Utils::splitArguments()).
+ * Empty lines are ignored. For every request, daemon writes a line with length
+ * of response in bytes followed by plugin response XML (UTF-8) and line break:
+ * @code
+ * LENGTH
+ * <?xml ...?><plugin-reply>...</plugin-reply>
+ * @endcode
+ *
+ * When serving standard input, responses are written directly to standard
+ * output file descriptor and System.out is redirected to standard error for
+ * the lifetime of daemon, so that stray output of framework or student threads
+ * cannot break response framing.
+ *
+ * If warm-up submission is supplied, it is graded several times before first
+ * request is accepted (responses are discarded).
+ *
+ * @author %hon2a
+ */
+public class PluginDaemon {
+
+	private static final String ENCODING = "UTF-8"; ///< protocol encoding
+	private static final int WARMUP_RUNS = 5; ///< number of warm-up runs
+
+	private final PluginFactory factory; ///< factory for plugin instances
+
+	/**
+	 * Default and only constructor.
+	 *
+	 * @param factory factory for plugin instances
+	 */
+	public PluginDaemon (PluginFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * Run daemon.
+	 *
+	 * @param args command line arguments (see class description)
+	 */
+	public static void main (String[] args) {
+		if (args.length < 1) {
+			System.err.println("Usage: PluginDaemon PLUGIN_CLASS [-port PORT] [-warmup ZIP_PATH]");
+			System.exit(1);
+		}
+
+		int port = -1;
+		String warmupPath = null;
+		for (int i = 1; i < args.length; ++i) {
+			if (args[i].equals("-port") && (i + 1 < args.length)) {
+				port = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("-warmup") && (i + 1 < args.length)) {
+				warmupPath = args[++i];
+			} else {
+				System.err.println("Unknown argument: " + args[i]);
+				System.exit(1);
+			}
+		}
+
+		try {
+			PluginDaemon daemon = new PluginDaemon(new PluginFactory(args[0]));
+			OutputStream replies = null;
+			if (port < 0) {
+				replies = new FileOutputStream(FileDescriptor.out);
+				System.setOut(System.err);
+			}
+			if (warmupPath != null) {
+				daemon.warmUp(new File(warmupPath));
+			}
+			if (port < 0) {
+				daemon.serve(System.in, replies);
+			} else {
+				daemon.listen(port);
+			}
+		} catch (Exception e) {
+			System.err.println(Utils.getMessageTrace(e));
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Grade warm-up submission several times to load and compile plugin code paths.
+	 *
+	 * @param submission warm-up submission archive
+	 */
+	public void warmUp (File submission) {
+		for (int i = 0; i < WARMUP_RUNS; ++i) {
+			this.factory.run(new String[] { submission.getAbsolutePath() });
+		}
+	}
+
+	/**
+	 * Accept connections on loopback interface and serve each of them in separate thread.
+	 *
+	 * @param port port to listen on
+	 * @throws IOException in case server socket cannot be opened
+	 */
+	public void listen (int port) throws IOException {
+		ServerSocket server = new ServerSocket(port, 0, InetAddress.getByName(null));
+		try {
+			while (true) {
+				final Socket connection = server.accept();
+				Thread worker = new Thread(new Runnable() {
+					public void run() {
+						try {
+							PluginDaemon.this.serve(connection.getInputStream(), connection.getOutputStream());
+						} catch (IOException e) {
+							System.err.println(Utils.getMessageTrace(e));
+						} finally {
+							try {
+								connection.close();
+							} catch (IOException e) {
+							}
+						}
+					}
+				});
+				worker.setDaemon(true);
+				worker.start();
+			}
+		} finally {
+			server.close();
+		}
+	}
+
+	/**
+	 * Serve requests from input stream until its end is reached.
+	 *
+	 * Output stream is captured at start, so that plugins redirecting standard
+	 * output cannot corrupt responses.
+	 *
+	 * @param input request stream
+	 * @param output response stream
+	 * @throws IOException in case of communication error
+	 */
+	public void serve (InputStream input, OutputStream output) throws IOException {
+		BufferedReader reader = new BufferedReader(new InputStreamReader(input, ENCODING));
+		PrintStream writer = new PrintStream(output, false, ENCODING);
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (line.trim().equals("")) {
+				continue;
+			}
+			byte[] reply = this.factory.run(Utils.splitArguments(line)).getBytes(ENCODING);
+			writer.print(reply.length);
+			writer.print('\n');
+			writer.write(reply);
+			writer.print('\n');
+			writer.flush();
+		}
+	}
+}
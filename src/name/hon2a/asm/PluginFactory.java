@@ -0,0 +1,82 @@
+package name.hon2a.asm;
+
+/**
+ * Factory creating fresh @link Plugin plugin @endlink instances of single class.
+ *
+ * Plugin instances are single-use (criteria and temporary folders are bound to
+ * one Plugin::run() call), so long-running drivers need to create new instance
+ * for every submission. Plugin class is resolved only once, on factory creation.
+ *
+ * @author %hon2a
+ */
+public class PluginFactory {
+
+	private final Class<? extends Plugin> pluginClass; ///< class of created plugins
+
+	/**
+	 * Constructor for plugins referenced by class name.
+	 *
+	 * @param className fully qualified name of plugin class
+	 * @throws PluginUseException in case class cannot be found or is not a plugin
+	 */
+	public PluginFactory (String className) throws PluginUseException {
+		Class<?> loadedClass;
+		try {
+			loadedClass = Class.forName(className);
+		} catch (ClassNotFoundException e) {
+			throw new PluginUseException("Plugin class " + className + " cannot be found", e);
+		}
+		if (!Plugin.class.isAssignableFrom(loadedClass)) {
+			throw new PluginUseException("Class " + className + " is not a plugin");
+		}
+		this.pluginClass = loadedClass.asSubclass(Plugin.class);
+	}
+
+	/**
+	 * Constructor for plugins referenced by class.
+	 *
+	 * @param pluginClass plugin class
+	 */
+	public PluginFactory (Class<? extends Plugin> pluginClass) {
+		this.pluginClass = pluginClass;
+	}
+
+	/**
+	 * Getter for plugin class name.
+	 *
+	 * @return Fully qualified name of plugin class.
+	 */
+	public final String getPluginName () {
+		return this.pluginClass.getName();
+	}
+
+	/**
+	 * Create new plugin instance using its default constructor.
+	 *
+	 * @return New plugin instance.
+	 * @throws PluginCodeException in case plugin cannot be instantiated
+	 */
+	public Plugin create () throws PluginCodeException {
+		try {
+			return this.pluginClass.getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new PluginCodeException("Plugin " + this.getPluginName() + " cannot be instantiated", e);
+		}
+	}
+
+	/**
+	 * Run new plugin instance with supplied arguments.
+	 *
+	 * @param args plugin arguments (see Plugin::run())
+	 * @return Plugin response XML string (error response if plugin cannot be created).
+	 */
+	public String run (String[] args) {
+		Plugin plugin;
+		try {
+			plugin = this.create();
+		} catch (PluginCodeException e) {
+			return Plugin.makeErrorReply(e.getMessage());
+		}
+		return plugin.run(args);
+	}
+}
@@ -0,0 +1,293 @@
+package name.hon2a.asm;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Plugin driver measuring latency of repeated grading of captured submissions.
+ *
+ * Usage:
+ * @code
+ * java -cp PLUGIN_JAR name.hon2a.asm.PluginReplay PLUGIN_CLASS INPUT [-runs COUNT] [-warmup COUNT]
+ *		[-fork] [-outlier FACTOR] [PLUGIN_PARAMS...]
+ * @endcode
+ *
+ * INPUT is folder or manifest file with submission archives (see
+ * PluginBatch::listSubmissions()). Every submission is graded @c COUNT times
+ * (10 by default) one after another, after the whole corpus was graded
+ * @c warmup times (2 by default) with discarded results. With @c -fork , every
+ * run starts new JVM with the same class path and @c asm.* settings (as when
+ * plugin is started by Assignment Manager), warm-up runs are skipped then.
+ *
+ * Report contains latency distribution of every submission:
+ * @code
+ * SUBMISSION  RUNS  MIN  P50  P95  MAX  MEAN (ms)  [FLAGS]
+ * @endcode
+ * Submission is flagged as @c slow if its median latency exceeds median of all
+ * submission medians @c FACTOR times (3 by default), and as @c unstable if its
+ * slowest run exceeds its own median @c FACTOR times. Flagged submissions are
+ * candidates for local profiling.
+ *
+ * @author %hon2a
+ */
+public class PluginReplay {
+
+	private static final String JAVA_BINARY = "java"; ///< name of Java launcher in JRE bin folder
+
+	private final PluginFactory factory; ///< factory for plugin instances
+	private final String[] params; ///< additional plugin arguments
+	private final boolean fork; ///< true to grade every run in new JVM
+
+	/**
+	 * Latency distribution of single submission.
+	 */
+	public static final class Result {
+
+		private final File submission; ///< submission archive
+		private final long[] latencies; ///< sorted run latencies (in nanoseconds)
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param submission submission archive
+		 * @param latencies run latencies (in nanoseconds)
+		 */
+		private Result (File submission, long[] latencies) {
+			this.submission = submission;
+			this.latencies = latencies.clone();
+			Arrays.sort(this.latencies);
+		}
+
+		/**
+		 * @return Submission archive.
+		 */
+		public File getSubmission () {
+			return this.submission;
+		}
+
+		/**
+		 * Get latency percentile.
+		 *
+		 * @param percentile percentile (0 - 100)
+		 * @return Latency in nanoseconds (nearest-rank method).
+		 */
+		public long getPercentile (double percentile) {
+			int rank = (int) Math.ceil(percentile / 100 * this.latencies.length);
+			return this.latencies[Math.max(0, Math.min(this.latencies.length, rank) - 1)];
+		}
+
+		/**
+		 * @return Mean latency (in nanoseconds).
+		 */
+		public long getMean () {
+			long sum = 0;
+			for (long latency : this.latencies) {
+				sum += latency;
+			}
+			return sum / this.latencies.length;
+		}
+
+		/**
+		 * @return Number of runs.
+		 */
+		public int getRunCount () {
+			return this.latencies.length;
+		}
+	}
+
+	/**
+	 * Default and only constructor.
+	 *
+	 * @param factory factory for plugin instances
+	 * @param params additional plugin arguments passed after submission path
+	 * @param fork true to grade every run in new JVM
+	 */
+	public PluginReplay (PluginFactory factory, String[] params, boolean fork) {
+		this.factory = factory;
+		this.params = params;
+		this.fork = fork;
+	}
+
+	/**
+	 * Run replay.
+	 *
+	 * @param args command line arguments (see class description)
+	 */
+	public static void main (String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: PluginReplay PLUGIN_CLASS INPUT [-runs COUNT] [-warmup COUNT] [-fork]"
+					+ " [-outlier FACTOR] [PLUGIN_PARAMS...]");
+			System.exit(1);
+		}
+
+		int runCount = 10;
+		int warmupCount = 2;
+		boolean fork = false;
+		double outlierFactor = 3;
+		List<String> params = new ArrayList<String>();
+		for (int i = 2; i < args.length; ++i) {
+			if (args[i].equals("-runs") && (i + 1 < args.length)) {
+				runCount = Math.max(1, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-warmup") && (i + 1 < args.length)) {
+				warmupCount = Math.max(0, Integer.parseInt(args[++i]));
+			} else if (args[i].equals("-fork")) {
+				fork = true;
+			} else if (args[i].equals("-outlier") && (i + 1 < args.length)) {
+				outlierFactor = Double.parseDouble(args[++i]);
+			} else {
+				params.add(args[i]);
+			}
+		}
+
+		// tests redirect standard streams while running
+		PrintStream out = System.out;
+		try {
+			PluginReplay replay = new PluginReplay(new PluginFactory(args[0]),
+					params.toArray(new String[] {}), fork);
+			List<File> submissions = PluginBatch.listSubmissions(new File(args[1]));
+			if (!fork) {
+				replay.warmUp(submissions, warmupCount);
+			}
+			List<Result> results = new ArrayList<Result>();
+			for (File submission : submissions) {
+				results.add(replay.replay(submission, runCount));
+			}
+			out.print(PluginReplay.formatReport(results, outlierFactor));
+		} catch (Exception e) {
+			System.err.println(Utils.getMessageTrace(e));
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Grade every submission several times to load and compile plugin code paths.
+	 *
+	 * @param submissions submission archives
+	 * @param warmupCount number of warm-up runs of every submission
+	 */
+	public void warmUp (List<File> submissions, int warmupCount) {
+		for (int i = 0; i < warmupCount; ++i) {
+			for (File submission : submissions) {
+				this.factory.run(this.createArgs(submission));
+			}
+		}
+	}
+
+	/**
+	 * Grade submission repeatedly and measure latency of every run.
+	 *
+	 * @param submission submission archive
+	 * @param runCount number of runs
+	 * @return Latency distribution.
+	 * @throws IOException in case forked JVM cannot be started
+	 * @throws InterruptedException in case replay is interrupted while waiting for forked JVM
+	 */
+	public Result replay (File submission, int runCount) throws IOException, InterruptedException {
+		long[] latencies = new long[runCount];
+		for (int i = 0; i < runCount; ++i) {
+			long startTime = System.nanoTime();
+			if (this.fork) {
+				this.runForked(submission);
+			} else {
+				this.factory.run(this.createArgs(submission));
+			}
+			latencies[i] = System.nanoTime() - startTime;
+		}
+		return new Result(submission, latencies);
+	}
+
+	/**
+	 * Grade submission in new JVM.
+	 *
+	 * @param submission submission archive
+	 * @return Plugin response.
+	 * @throws IOException in case JVM cannot be started
+	 * @throws InterruptedException in case replay is interrupted while waiting for JVM
+	 */
+	private String runForked (File submission) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), JAVA_BINARY).getPath());
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+			String name = property.getKey().toString();
+			if (name.startsWith("asm.")) {
+				command.add("-D" + name + "=" + property.getValue());
+			}
+		}
+		command.add(this.factory.getPluginName());
+		command.addAll(Arrays.asList(this.createArgs(submission)));
+
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		process.getOutputStream().close();
+		ByteArrayOutputStream reply = new ByteArrayOutputStream();
+		InputStream input = process.getInputStream();
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = input.read(buffer)) != -1) {
+				reply.write(buffer, 0, count);
+			}
+		} finally {
+			input.close();
+		}
+		process.waitFor();
+		return reply.toString();
+	}
+
+	/**
+	 * Create plugin arguments for submission.
+	 *
+	 * @param submission submission archive
+	 * @return Submission path followed by additional plugin arguments.
+	 */
+	private String[] createArgs (File submission) {
+		String[] args = new String[this.params.length + 1];
+		args[0] = submission.getAbsolutePath();
+		System.arraycopy(this.params, 0, args, 1, this.params.length);
+		return args;
+	}
+
+	/**
+	 * Format latency report with outliers flagged.
+	 *
+	 * @param results latency distributions of all submissions
+	 * @param outlierFactor ratio to median latency above which latency is considered outlier
+	 * @return Report text (one line per submission).
+	 */
+	public static String formatReport (List<Result> results, double outlierFactor) {
+		long[] medians = new long[results.size()];
+		for (int i = 0; i < medians.length; ++i) {
+			medians[i] = results.get(i).getPercentile(50);
+		}
+		Arrays.sort(medians);
+		long corpusMedian = (medians.length > 0) ? medians[(medians.length - 1) / 2] : 0;
+
+		StringBuilder report = new StringBuilder(String.format("%-40s %5s %9s %9s %9s %9s %9s  (ms)%n",
+				"SUBMISSION", "RUNS", "MIN", "P50", "P95", "MAX", "MEAN"));
+		for (Result result : results) {
+			List<String> flags = new ArrayList<String>();
+			long median = result.getPercentile(50);
+			if (median > corpusMedian * outlierFactor) {
+				flags.add("slow");
+			}
+			if (result.getPercentile(100) > median * outlierFactor) {
+				flags.add("unstable");
+			}
+			String line = String.format("%-40s %5d %9.1f %9.1f %9.1f %9.1f %9.1f  %s",
+					result.getSubmission().getName(), result.getRunCount(),
+					result.getPercentile(0) / 1e6, median / 1e6, result.getPercentile(95) / 1e6,
+					result.getPercentile(100) / 1e6, result.getMean() / 1e6,
+					Utils.join(flags.toArray(), ","));
+			report.append(line.trim()).append(String.format("%n"));
+		}
+		return report.toString();
+	}
+}
@@ -0,0 +1,67 @@
+package name.hon2a.asm;
+
+/**
+ * Condition shared by several @link Test tests @endlink that must hold for any
+ * of them to succeed (e.g. "input XML document is well-formed").
+ *
+ * Tests declare their prerequisites using Test::addPrerequisite(). TesterPlugin
+ * checks every prerequisite only once, before any test is run, and tests whose
+ * prerequisite fails are not run at all - they fail with shared error instead.
+ * This saves expensive work (e.g. compilation of Java sources) on broken
+ * submissions. Prerequisite must therefore fail only if all dependent tests
+ * would fail too.
+ *
+ * @author %hon2a
+ */
+public abstract class Prerequisite {
+
+	private final String name; ///< prerequisite description
+	private boolean checked = false; ///< true once prerequisite has been checked
+	private Error error = null; ///< error of failed prerequisite (null if it holds)
+
+	/**
+	 * Default and only constructor.
+	 *
+	 * @param name human-readable prerequisite description
+	 */
+	public Prerequisite (String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Getter for Prerequisite::name.
+	 *
+	 * @return Prerequisite description.
+	 */
+	public final String getName () {
+		return this.name;
+	}
+
+	/**
+	 * Check prerequisite (called only once).
+	 *
+	 * @throws TestException in case prerequisite does not hold
+	 */
+	protected abstract void check () throws TestException;
+
+	/**
+	 * Check prerequisite if it has not been checked yet.
+	 *
+	 * @return Error shared by dependent tests or null if prerequisite holds.
+	 */
+	public final synchronized Error evaluate () {
+		if (!this.checked) {
+			this.checked = true;
+			try {
+				this.check();
+			} catch (TestException e) {
+				this.error = new Error(Utils.indentError("Prerequisite failed: " + this.name,
+						Utils.getMessageTrace(e)));
+			} catch (Exception e) {
+				this.error = new Error(Utils.indentError("Prerequisite failed: " + this.name,
+						"Runtime error" + Utils.indent(Utils.getMessageTrace(e, true))));
+			}
+		}
+		return this.error;
+	}
+}
@@ -0,0 +1,20 @@
+package name.hon2a.asm;
+
+import java.io.IOException;
+
+/**
+ * Exception thrown when files written to scratch space exceed their quota.
+ *
+ * Use-case: Submission archive unpacks to more data than allowed.
+ *
+ * @author %hon2a
+ * @see ScratchSpace.Quota
+ */
+public class QuotaExceededException extends IOException {
+
+	private static final long serialVersionUID = 1L; ///< serialization version
+
+	public QuotaExceededException (String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,341 @@
+package name.hon2a.asm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background remover of temporary files and folders.
+ *
+ * Removing unpacked submissions can take a long time (students sometimes submit
+ * whole project folders with libraries), so plugins hand their temporary folders
+ * to reaper instead of removing them before response is returned. Reaper removes
+ * scheduled folders in batches in its own thread, retries removal of files that
+ * could not be removed and reports those that could not be removed even after
+ * last attempt. Everything that is still scheduled on JVM exit is removed before
+ * JVM terminates.
+ *
+ * Emptied scratch folders are returned to scratch space pool if it is not full
+ * (see ScratchSpace).
+ *
+ * On start, reaper also removes temporary folders left behind by plugin runs
+ * that crashed (see Utils::createTempDirectory() and Reaper::isOrphan()).
+ *
+ * @author %hon2a
+ */
+public final class Reaper implements Runnable {
+
+	/**
+	 * Scheduled removal.
+	 */
+	private static final class Removal implements Delayed {
+
+		private final File file; ///< file or folder to be removed
+		private final int attempt; ///< number of previous attempts
+		private final long time; ///< earliest time of removal (in nanoseconds)
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param file file or folder to be removed
+		 * @param attempt number of previous attempts
+		 * @param delay delay before removal (in milliseconds)
+		 */
+		public Removal (File file, int attempt, long delay) {
+			this.file = file;
+			this.attempt = attempt;
+			this.time = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+		}
+
+		public long getDelay (TimeUnit unit) {
+			return unit.convert(this.time - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo (Delayed other) {
+			long diff = this.getDelay(TimeUnit.NANOSECONDS) - other.getDelay(TimeUnit.NANOSECONDS);
+			return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+		}
+	}
+
+	private static final int BATCH_SIZE = 16; ///< maximum number of removals processed at once
+	private static final int MAX_ATTEMPTS = 3; ///< maximum number of removal attempts
+	private static final long RETRY_DELAY = 1000; ///< delay before next attempt (in milliseconds, multiplied by attempt number)
+
+	private static Reaper instance = null; ///< sole instance
+
+	private final DelayQueue<Removal> queue = new DelayQueue<Removal>(); ///< scheduled removals
+	private final Object batchLock = new Object(); ///< lock held while batch is being processed
+	private final List<File> failures = Collections.synchronizedList(new ArrayList<File>()); ///< files that could not be removed
+	private final long orphanAge; ///< minimum age of orphaned temporary folder (in milliseconds)
+
+	/**
+	 * Private constructor (use Reaper::getInstance()).
+	 */
+	private Reaper () {
+		this.orphanAge = Utils.getLongSetting("orphanAge", TimeUnit.DAYS.toMillis(1));
+	}
+
+	/**
+	 * Retrieve sole reaper instance, starting it if it's not running yet.
+	 *
+	 * @return Reaper instance.
+	 */
+	public static synchronized Reaper getInstance () {
+		if (instance == null) {
+			instance = new Reaper();
+			Thread thread = new Thread(instance, "asm-reaper");
+			thread.setDaemon(true);
+			thread.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					Reaper.instance.drain();
+				}
+			}, "asm-reaper-drain"));
+		}
+		return instance;
+	}
+
+	/**
+	 * Schedule file or folder (with its contents) for removal.
+	 *
+	 * @param file file or folder to be removed
+	 */
+	public void schedule (File file) {
+		if (file != null) {
+			this.queue.add(new Removal(file, 0, 0));
+		}
+	}
+
+	/**
+	 * Getter for Reaper::failures.
+	 *
+	 * @return Files that could not be removed even after last attempt.
+	 */
+	public List<File> getFailures () {
+		synchronized (this.failures) {
+			return new ArrayList<File>(this.failures);
+		}
+	}
+
+	/**
+	 * Remove orphaned temporary folders and then process scheduled removals until
+	 * JVM exits.
+	 */
+	public void run () {
+		this.sweepOrphans();
+		List<Removal> batch = new ArrayList<Removal>(BATCH_SIZE);
+		while (true) {
+			try {
+				batch.add(this.queue.take());
+			} catch (InterruptedException e) {
+				return;
+			}
+			synchronized (this.batchLock) {
+				this.queue.drainTo(batch, BATCH_SIZE - 1);
+				for (Removal removal : batch) {
+					this.remove(removal, true);
+				}
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Immediately process all scheduled removals (used on JVM exit).
+	 */
+	public void drain () {
+		synchronized (this.batchLock) {
+			Removal removal;
+			while ((removal = this.queue.poll()) != null || (removal = this.pollAny()) != null) {
+				this.remove(removal, false);
+			}
+		}
+	}
+
+	/**
+	 * Retrieve scheduled removal regardless of its delay.
+	 *
+	 * @return Removal or null if nothing is scheduled.
+	 */
+	private Removal pollAny () {
+		for (Removal removal : this.queue) {
+			if (this.queue.remove(removal)) {
+				return removal;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Attempt scheduled removal and schedule retry or report failure if some files
+	 * could not be removed.
+	 *
+	 * Emptied scratch folders are recycled only in background mode (on JVM exit,
+	 * they are removed).
+	 *
+	 * @param removal scheduled removal
+	 * @param background true to delay next attempt, false to retry right away
+	 */
+	private void remove (Removal removal, boolean background) {
+		ScratchSpace scratchSpace = ScratchSpace.getInstance();
+		boolean recycle = background && scratchSpace.isRecyclable(removal.file);
+		List<Path> remaining = Reaper.removeTree(removal.file, recycle);
+		if (remaining.isEmpty()) {
+			if (recycle) {
+				scratchSpace.recycle(removal.file);
+			} else {
+				scratchSpace.release(removal.file);
+			}
+			return;
+		}
+		int attempt = removal.attempt + 1;
+		if (attempt < MAX_ATTEMPTS) {
+			if (background) {
+				this.queue.add(new Removal(removal.file, attempt, attempt * RETRY_DELAY));
+			} else {
+				this.remove(new Removal(removal.file, attempt, 0), false);
+			}
+			return;
+		}
+		this.failures.add(removal.file);
+		System.err.println(Utils.indentError("Temporary files could not be removed:",
+				Utils.join(remaining.toArray(), Utils.EOL_STRING)));
+	}
+
+	/**
+	 * Remove file or folder with all its contents, continuing past files that
+	 * cannot be removed.
+	 *
+	 * @param file file or folder to be removed
+	 * @param keepRoot true to remove only folder contents, not folder itself
+	 * @return Paths that could not be removed (empty list on success).
+	 */
+	private static List<Path> removeTree (File file, final boolean keepRoot) {
+		final List<Path> remaining = new ArrayList<Path>();
+		if (!file.exists()) {
+			return remaining;
+		}
+		final Path root = file.toPath();
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path path, BasicFileAttributes attrs) {
+					Reaper.removePath(path, remaining);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path path, IOException e) {
+					remaining.add(path);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+					if (!keepRoot || !dir.equals(root)) {
+						Reaper.removePath(dir, remaining);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			remaining.add(file.toPath());
+		}
+		return remaining;
+	}
+
+	/**
+	 * Remove single file or empty folder.
+	 *
+	 * @param path path to be removed
+	 * @param remaining list of paths that could not be removed (path is added on failure)
+	 */
+	private static void removePath (Path path, List<Path> remaining) {
+		try {
+			Files.deleteIfExists(path);
+		} catch (IOException e) {
+			remaining.add(path);
+		}
+	}
+
+	/**
+	 * Schedule removal of temporary folders left behind by crashed plugin runs.
+	 */
+	private void sweepOrphans () {
+		File tempRoot = new File(System.getProperty("java.io.tmpdir"));
+		File scratchRoot = ScratchSpace.getInstance().getRoot();
+		File[] roots = tempRoot.equals(scratchRoot)
+				? new File[] { tempRoot }
+				: new File[] { tempRoot, scratchRoot };
+		for (File root : roots) {
+			File[] candidates = root.listFiles();
+			if (candidates == null) {
+				continue;
+			}
+			for (File candidate : candidates) {
+				if (candidate.isDirectory() && this.isOrphan(candidate)) {
+					this.schedule(candidate);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check whether folder is temporary folder of plugin run that is no longer running.
+	 *
+	 * Folder is orphaned only if neither it nor any of its direct children has
+	 * been modified for @c asm.orphanAge milliseconds. Temporary folder names also
+	 * contain ID of process that created them. Folders of current process are
+	 * never orphaned, and if process IDs can be checked (on systems with @c /proc
+	 * file system), folders of processes that are still running are kept as well.
+	 * Process ID alone is not enough, as graders in other PID namespaces (e.g.
+	 * containers sharing temporary folder) are not visible in @c /proc .
+	 *
+	 * @param folder folder to be checked
+	 * @return True if folder is orphaned temporary folder, false otherwise.
+	 */
+	private boolean isOrphan (File folder) {
+		String name = folder.getName();
+		if (!name.startsWith(Utils.TEMP_FOLDER_PREFIX)) {
+			return false;
+		}
+		String[] nameParts = name.substring(Utils.TEMP_FOLDER_PREFIX.length()).split("_", 2);
+		if ((nameParts.length == 2) && nameParts[0].matches("[0-9]+")) {
+			if (nameParts[0].equals(Utils.getProcessId())) {
+				return false;
+			}
+			File processes = new File("/proc");
+			if (processes.isDirectory() && new File(processes, nameParts[0]).exists()) {
+				return false;
+			}
+		}
+		return (System.currentTimeMillis() - Reaper.getLastModified(folder) > this.orphanAge);
+	}
+
+	/**
+	 * Get time of last modification of folder or any of its direct children.
+	 *
+	 * @param folder folder to be checked
+	 * @return Time of last modification (in milliseconds since epoch).
+	 */
+	private static long getLastModified (File folder) {
+		long lastModified = folder.lastModified();
+		File[] children = folder.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				lastModified = Math.max(lastModified, child.lastModified());
+			}
+		}
+		return lastModified;
+	}
+}
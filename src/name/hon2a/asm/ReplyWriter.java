@@ -0,0 +1,228 @@
+package name.hon2a.asm;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * Streaming writer of plugin responses (see Plugin::writeReply() for response
+ * structure).
+ *
+ * Response elements are written directly to output stream as they are added,
+ * so that large criterion details need not be held in memory more than once.
+ * All text is escaped automatically. The same writer also produces combined
+ * responses of PluginBatch (see ReplyWriter::writeSubmission()).
+ *
+ * @author %hon2a
+ */
+final class ReplyWriter {
+
+	static final String ENCODING = "UTF-8"; ///< response encoding
+
+	private static final XMLOutputFactory factory = XMLOutputFactory.newInstance(); ///< StAX writer factory
+	private static final XMLInputFactory inputFactory = XMLInputFactory.newInstance(); ///< StAX reader factory
+
+	private final XMLStreamWriter writer; ///< underlying StAX writer
+
+	/**
+	 * Start response document.
+	 *
+	 * @param out response stream
+	 * @throws IOException in case response cannot be written
+	 */
+	public ReplyWriter (OutputStream out) throws IOException {
+		this(out, "plugin-reply");
+	}
+
+	/**
+	 * Start document with given root element.
+	 *
+	 * @param out response stream
+	 * @param rootElement name of root element
+	 * @throws IOException in case response cannot be written
+	 */
+	public ReplyWriter (OutputStream out, String rootElement) throws IOException {
+		try {
+			this.writer = factory.createXMLStreamWriter(out, ENCODING);
+			this.writer.writeStartDocument(ENCODING, "1.0");
+			this.writer.writeStartElement(rootElement);
+		} catch (XMLStreamException e) {
+			throw new IOException("Plugin response cannot be written", e);
+		}
+	}
+
+	/**
+	 * Write output archive element.
+	 *
+	 * @param path path of output archive
+	 * @throws IOException in case response cannot be written
+	 */
+	public void writeOutput (String path) throws IOException {
+		try {
+			this.writer.writeStartElement("output");
+			this.writeTextElement("file", path);
+			this.writer.writeEndElement();
+		} catch (XMLStreamException e) {
+			throw new IOException("Plugin response cannot be written", e);
+		}
+	}
+
+	/**
+	 * Write output element listing unpacked output files.
+	 *
+	 * @param folder path of output folder
+	 * @param files paths of output files
+	 * @throws IOException in case response cannot be written
+	 */
+	public void writeOutputFolder (String folder, List<String> files) throws IOException {
+		try {
+			this.writer.writeStartElement("output");
+			this.writeTextElement("folder", folder);
+			for (String file : files) {
+				this.writeTextElement("file", file);
+			}
+			this.writer.writeEndElement();
+		} catch (XMLStreamException e) {
+			throw new IOException("Plugin response cannot be written", e);
+		}
+	}
+
+	/**
+	 * Write criterion element.
+	 *
+	 * @param name criterion name
+	 * @param passed true if criterion is met
+	 * @param fulfillment fulfillment percentage
+	 * @param details error details
+	 * @throws IOException in case response cannot be written
+	 */
+	public void writeCriterion (String name, boolean passed, int fulfillment, String details)
+			throws IOException {
+		try {
+			this.writer.writeStartElement("criterion");
+			this.writer.writeAttribute("name", name);
+			this.writeTextElement("passed", Boolean.toString(passed));
+			this.writeTextElement("fulfillment", Integer.toString(fulfillment));
+			this.writeTextElement("details", details);
+			this.writer.writeEndElement();
+		} catch (XMLStreamException e) {
+			throw new IOException("Plugin response cannot be written", e);
+		}
+	}
+
+	/**
+	 * Write error element.
+	 *
+	 * @param error error details
+	 * @throws IOException in case response cannot be written
+	 */
+	public void writeError (String error) throws IOException {
+		try {
+			this.writeTextElement("error", error);
+		} catch (XMLStreamException e) {
+			throw new IOException("Plugin response cannot be written", e);
+		}
+	}
+
+	/**
+	 * Write timings element.
+	 *
+	 * @param timings durations of run phases (in nanoseconds) identified by phase names
+	 * @throws IOException in case response cannot be written
+	 */
+	public void writeTimings (Map<String, Long> timings) throws IOException {
+		try {
+			this.writer.writeStartElement("timings");
+			for (Map.Entry<String, Long> timing : timings.entrySet()) {
+				this.writer.writeStartElement("phase");
+				this.writer.writeAttribute("name", timing.getKey());
+				this.writer.writeCharacters(Long.toString(timing.getValue()));
+				this.writer.writeEndElement();
+			}
+			this.writer.writeEndElement();
+		} catch (XMLStreamException e) {
+			throw new IOException("Plugin response cannot be written", e);
+		}
+	}
+
+	/**
+	 * Write submission element containing complete plugin response and flush it.
+	 *
+	 * Response is copied element by element, so that it is escaped the same way
+	 * as the rest of the document.
+	 *
+	 * @param file path of submission archive
+	 * @param reply plugin response XML string
+	 * @throws IOException in case response cannot be parsed or written
+	 */
+	public void writeSubmission (String file, String reply) throws IOException {
+		try {
+			this.writer.writeStartElement("submission");
+			this.writer.writeAttribute("file", file);
+			XMLStreamReader reader = inputFactory.createXMLStreamReader(new StringReader(reply));
+			try {
+				while (reader.hasNext()) {
+					switch (reader.next()) {
+						case XMLStreamConstants.START_ELEMENT:
+							this.writer.writeStartElement(reader.getLocalName());
+							for (int i = 0; i < reader.getAttributeCount(); ++i) {
+								this.writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+							}
+							break;
+						case XMLStreamConstants.END_ELEMENT:
+							this.writer.writeEndElement();
+							break;
+						case XMLStreamConstants.CHARACTERS:
+						case XMLStreamConstants.CDATA:
+						case XMLStreamConstants.SPACE:
+							this.writer.writeCharacters(reader.getText());
+							break;
+					}
+				}
+			} finally {
+				reader.close();
+			}
+			this.writer.writeEndElement();
+			this.writer.flush();
+		} catch (XMLStreamException e) {
+			throw new IOException("Batch response cannot be written", e);
+		}
+	}
+
+	/**
+	 * Finish response document and flush it to output stream (stream is not closed).
+	 *
+	 * @throws IOException in case response cannot be written
+	 */
+	public void close () throws IOException {
+		try {
+			this.writer.writeEndElement();
+			this.writer.writeEndDocument();
+			this.writer.flush();
+			this.writer.close();
+		} catch (XMLStreamException e) {
+			throw new IOException("Plugin response cannot be written", e);
+		}
+	}
+
+	/**
+	 * Write element with text content.
+	 *
+	 * @param name element name
+	 * @param text element text (null is treated as empty string)
+	 * @throws XMLStreamException
+	 */
+	private void writeTextElement (String name, String text) throws XMLStreamException {
+		this.writer.writeStartElement(name);
+		this.writer.writeCharacters((text == null) ? "" : text);
+		this.writer.writeEndElement();
+	}
+}
@@ -0,0 +1,267 @@
+package name.hon2a.asm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * On-disk cache of whole plugin results.
+ *
+ * Students often resubmit identical archives, so plugin results are cached
+ * in folder set by @c asm.cacheDir setting (cache is disabled if it's not set).
+ * Results are identified by hash of submission archive contents, plugin class
+ * and version (including options that change response, see Plugin::getPluginId()),
+ * plugin configuration and plugin arguments (see ResultCache::computeKey()).
+ * Only regular responses are cached (never errors), and only if their results
+ * do not depend on conditions of the run (see Plugin::markUncacheable()).
+ * Criterion details are cached without temporary folder paths of the run that
+ * produced them.
+ *
+ * Each cache entry (see DiskCache) is a folder containing criteria results and
+ * copy of plugin output. Least recently used entries are removed once total size
+ * of cache exceeds @c asm.cacheMaxBytes . Whole cache is cleared when
+ * @c asm.cacheVersion setting changes (should be changed whenever tests change).
+ *
+ * @author %hon2a
+ */
+public final class ResultCache {
+
+	/**
+	 * Cached result of single criterion.
+	 */
+	public static final class CriterionResult {
+
+		public final boolean passed; ///< passed flag
+		public final int fulfillment; ///< fulfillment percentage
+		public final String details; ///< error details
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param passed passed flag
+		 * @param fulfillment fulfillment percentage
+		 * @param details error details
+		 */
+		public CriterionResult (boolean passed, int fulfillment, String details) {
+			this.passed = passed;
+			this.fulfillment = fulfillment;
+			this.details = details;
+		}
+	}
+
+	/**
+	 * Cached plugin result.
+	 */
+	public static final class Entry {
+
+		public final Map<String, CriterionResult> criteria; ///< criteria results identified by criteria names
+		public final File output; ///< plugin output (archive or folder, may be null)
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param criteria criteria results
+		 * @param output plugin output (may be null)
+		 */
+		public Entry (Map<String, CriterionResult> criteria, File output) {
+			this.criteria = criteria;
+			this.output = output;
+		}
+	}
+
+	private static final String RESULTS_FILE = "results"; ///< name of file with criteria results in entry folder
+	private static final String OUTPUT_FILE = "output"; ///< name of plugin output in entry folder
+
+	private static ResultCache instance = null; ///< sole instance
+
+	private final DiskCache store; ///< underlying entry store (null if cache is disabled)
+	private final String version; ///< cache version
+
+	/**
+	 * Private constructor (use ResultCache::getInstance()).
+	 */
+	private ResultCache () {
+		String folder = Utils.getSetting("cacheDir", "");
+		this.version = Utils.getSetting("cacheVersion", "");
+		this.store = folder.equals("") ? null
+				: new DiskCache(new File(folder), Utils.getLongSetting("cacheMaxBytes", 256L * 1024 * 1024),
+						this.version);
+	}
+
+	/**
+	 * Retrieve sole result cache instance.
+	 *
+	 * @return Result cache instance.
+	 */
+	public static synchronized ResultCache getInstance () {
+		if (instance == null) {
+			instance = new ResultCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * @return True if cache folder is set, false otherwise.
+	 */
+	public boolean isEnabled () {
+		return (this.store != null);
+	}
+
+	/**
+	 * Compute cache key of plugin run.
+	 *
+	 * @param dataFile submission archive
+	 * @param pluginId plugin class name and version
+	 * @param config plugin configuration (may be null)
+	 * @param params plugin arguments (without submission path)
+	 * @return Cache key (hexadecimal SHA-256 hash).
+	 * @throws IOException in case submission archive cannot be read
+	 */
+	public String computeKey (File dataFile, String pluginId, Map<String, String> config, String[] params)
+			throws IOException {
+		MessageDigest digest = DiskCache.createDigest();
+		InputStream is = new BufferedInputStream(new FileInputStream(dataFile));
+		try {
+			byte[] buffer = new byte[8192];
+			int count;
+			while ((count = is.read(buffer)) != -1) {
+				digest.update(buffer, 0, count);
+			}
+		} finally {
+			is.close();
+		}
+		DiskCache.update(digest, this.version);
+		DiskCache.update(digest, pluginId);
+		if (config != null) {
+			for (Map.Entry<String, String> option : new TreeMap<String, String>(config).entrySet()) {
+				DiskCache.update(digest, option.getKey() + "=" + option.getValue());
+			}
+		}
+		DiskCache.update(digest, "--");
+		for (String param : params) {
+			DiskCache.update(digest, param);
+		}
+		return DiskCache.toKey(digest);
+	}
+
+	/**
+	 * Retrieve cached plugin result.
+	 *
+	 * Plugin output is copied from cache to new temporary file (or to
+	 * @p unpackedOutput if output was not packed), so that caller may dispose of it.
+	 *
+	 * @param key cache key
+	 * @param unpackedOutput destination of output folder (if output was not packed)
+	 * @return Cached result or null if there is none.
+	 */
+	public Entry lookup (String key, File unpackedOutput) {
+		File entryFolder = this.store.get(key);
+		if (entryFolder == null) {
+			return null;
+		}
+		File output = null;
+		try {
+			Map<String, CriterionResult> criteria = readResults(new File(entryFolder, RESULTS_FILE));
+			File cachedOutput = new File(entryFolder, OUTPUT_FILE);
+			if (cachedOutput.isDirectory()) {
+				output = unpackedOutput;
+				Utils.extractPath(cachedOutput.toPath(), output, null);
+			} else if (cachedOutput.exists()) {
+				output = Utils.createTempFile("zip");
+				Files.copy(cachedOutput.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			return new Entry(criteria, output);
+		} catch (IOException e) {
+			// entry may have been evicted by another process
+			if (output != null) {
+				Utils.removeAnyFile(output);
+			}
+			this.store.discard(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Store plugin result in cache.
+	 *
+	 * @param key cache key
+	 * @param entry plugin result
+	 * @throws IOException in case entry cannot be written
+	 * @see DiskCache::commit()
+	 */
+	public void store (String key, Entry entry) throws IOException {
+		if (this.store.contains(key)) {
+			return;
+		}
+		File tempFolder = this.store.prepare(key);
+		try {
+			writeResults(new File(tempFolder, RESULTS_FILE), entry.criteria);
+			if (entry.output != null) {
+				Utils.extractPath(entry.output.toPath(), new File(tempFolder, OUTPUT_FILE), null);
+			}
+		} catch (IOException e) {
+			Utils.removeDirectoryAndContents(tempFolder);
+			throw e;
+		}
+		this.store.commit(key, tempFolder);
+	}
+
+	/**
+	 * Write criteria results to file.
+	 *
+	 * @param file destination file
+	 * @param criteria criteria results
+	 * @throws IOException
+	 */
+	private static void writeResults (File file, Map<String, CriterionResult> criteria) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(criteria.size());
+			for (Map.Entry<String, CriterionResult> criterion : criteria.entrySet()) {
+				DiskCache.writeString(out, criterion.getKey());
+				out.writeBoolean(criterion.getValue().passed);
+				out.writeInt(criterion.getValue().fulfillment);
+				DiskCache.writeString(out, criterion.getValue().details);
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Read criteria results from file.
+	 *
+	 * @param file source file
+	 * @return Criteria results.
+	 * @throws IOException
+	 * @see ResultCache::writeResults()
+	 */
+	private static Map<String, CriterionResult> readResults (File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int count = in.readInt();
+			Map<String, CriterionResult> criteria = new LinkedHashMap<String, CriterionResult>(count);
+			for (int i = 0; i < count; ++i) {
+				String name = DiskCache.readString(in);
+				boolean passed = in.readBoolean();
+				int fulfillment = in.readInt();
+				criteria.put(name, new CriterionResult(passed, fulfillment, DiskCache.readString(in)));
+			}
+			return criteria;
+		} finally {
+			in.close();
+		}
+	}
+}
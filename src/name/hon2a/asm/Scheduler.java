@@ -0,0 +1,252 @@
+package name.hon2a.asm;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Process-wide scheduler of framework tasks (tests, submissions of PluginBatch,
+ * compression blocks of ParallelZipWriter).
+ *
+ * All tasks share single scheduler, so that running several submissions in
+ * one JVM does not run more tasks at once than there are processors. Number of
+ * running tasks is limited by permits that tasks give up while waiting in
+ * Scheduler::await(). By default, tasks run in work-stealing pool
+ * (java.util.concurrent.ForkJoinPool), where worker waiting for subtasks
+ * (e.g. submission waiting for its tests) is compensated by spare worker that
+ * executes them.
+ *
+ * Scheduler is configured by following settings (see Utils::getSetting()):
+ * @li @c asm.parallelism - maximum number of concurrently running tasks
+ *		(number of available processors by default),
+ * @li @c asm.scheduler - @c forkjoin (default) or @c virtual to run every task
+ *		in its own virtual thread where the runtime supports them (falls back to
+ *		@c forkjoin otherwise).
+ *
+ * Task that cannot be stopped (e.g. test abandoned after its deadline) can be
+ * detached from scheduler (see Scheduler::detach()), so that it does not
+ * occupy scheduler capacity anymore. Work-stealing pool has twice as many
+ * workers as there are permits, so that detached tasks still running in its
+ * workers do not reduce number of tasks that can run (unless more than
+ * @c asm.parallelism detached tasks are running at once).
+ *
+ * @author %hon2a
+ */
+public final class Scheduler {
+
+	private static Scheduler instance = null; ///< sole instance
+
+	private final int parallelism; ///< maximum number of concurrently running tasks
+	private final ExecutorService executor; ///< underlying executor
+	private final Semaphore permits; ///< running task permits
+	/// permit flags of threads running tasks (true while task holds permit)
+	private final Map<Thread, AtomicBoolean> permitHolders = new ConcurrentHashMap<Thread, AtomicBoolean>();
+
+	/**
+	 * Private constructor (use Scheduler::getInstance()).
+	 */
+	private Scheduler () {
+		this.parallelism = (int) Math.max(1, Utils.getLongSetting("parallelism",
+				Runtime.getRuntime().availableProcessors()));
+		ExecutorService virtualExecutor = Utils.getSetting("scheduler", "forkjoin").equals("virtual")
+				? createVirtualExecutor()
+				: null;
+		// spare workers run detached tasks (see Scheduler::detach())
+		this.executor = (virtualExecutor != null) ? virtualExecutor : new ForkJoinPool(2 * this.parallelism);
+		this.permits = new Semaphore(this.parallelism, true);
+	}
+
+	/**
+	 * Retrieve sole scheduler instance.
+	 *
+	 * @return Scheduler instance.
+	 */
+	public static synchronized Scheduler getInstance () {
+		if (instance == null) {
+			instance = new Scheduler();
+		}
+		return instance;
+	}
+
+	/**
+	 * Create executor starting new virtual thread for every task.
+	 *
+	 * @return Virtual thread executor or null if the runtime does not support virtual threads.
+	 */
+	private static ExecutorService createVirtualExecutor () {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return Maximum number of concurrently running tasks.
+	 */
+	public int getParallelism () {
+		return this.parallelism;
+	}
+
+	/**
+	 * Schedule task for execution.
+	 *
+	 * @param task task to be executed
+	 * @return Future result of task (use Scheduler::await() to wait for it).
+	 */
+	public <T> Future<T> submit (final Callable<T> task) {
+		return this.executor.submit(new Callable<T>() {
+			public T call() throws Exception {
+				Scheduler.this.permits.acquire();
+				AtomicBoolean holdsPermit = new AtomicBoolean(true);
+				Thread thread = Thread.currentThread();
+				// task may be run by worker helping in Scheduler::await() on behalf of another task
+				AtomicBoolean outerPermit = Scheduler.this.permitHolders.put(thread, holdsPermit);
+				try {
+					return task.call();
+				} finally {
+					if (outerPermit != null) {
+						Scheduler.this.permitHolders.put(thread, outerPermit);
+					} else {
+						Scheduler.this.permitHolders.remove(thread);
+					}
+					if (holdsPermit.compareAndSet(true, false)) {
+						Scheduler.this.permits.release();
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Schedule task for execution.
+	 *
+	 * @param task task to be executed
+	 * @return Future completion of task (use Scheduler::await() to wait for it).
+	 */
+	public Future<Object> submit (Runnable task) {
+		return this.submit(Executors.callable(task));
+	}
+
+	/**
+	 * Wait for task to finish.
+	 *
+	 * Task waiting for other scheduled tasks must use this method (and not
+	 * Future::get() directly), so that it does not occupy scheduler capacity
+	 * needed by tasks it is waiting for.
+	 *
+	 * @param future future returned by Scheduler::submit()
+	 * @return Task result.
+	 * @throws InterruptedException in case current thread is interrupted while waiting
+	 * @throws ExecutionException in case task has thrown exception
+	 */
+	public <T> T await (Future<T> future) throws InterruptedException, ExecutionException {
+		this.waitFor(future, false, 0);
+		return future.get();
+	}
+
+	/**
+	 * Wait for task to finish for limited time.
+	 *
+	 * @param future future returned by Scheduler::submit()
+	 * @param timeout maximum time to wait
+	 * @param unit time unit of timeout
+	 * @return Task result.
+	 * @throws InterruptedException in case current thread is interrupted while waiting
+	 * @throws ExecutionException in case task has thrown exception
+	 * @throws TimeoutException in case task has not finished in time
+	 * @see Scheduler::await(Future)
+	 */
+	public <T> T await (Future<T> future, long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		this.waitFor(future, true, System.nanoTime() + unit.toNanos(timeout));
+		if (!future.isDone()) {
+			throw new TimeoutException();
+		}
+		return future.get();
+	}
+
+	/**
+	 * Wait until task finishes or deadline passes, giving up permit of current task meanwhile.
+	 *
+	 * Waiting worker of work-stealing pool is compensated by spare worker (see
+	 * ForkJoinPool::managedBlock()), which runs tasks queued by waiting worker
+	 * (e.g. tests of waiting submission). If task does not finish in time,
+	 * permit is taken back only if it is available, so that the waiter can go on
+	 * to abandon the task (and detach it, see Scheduler::detach()).
+	 *
+	 * @param future future returned by Scheduler::submit()
+	 * @param timed true if waiting is limited by deadline
+	 * @param deadline deadline (System::nanoTime(), used only if @p timed is true)
+	 * @throws InterruptedException in case current thread is interrupted while waiting
+	 */
+	private void waitFor (final Future<?> future, final boolean timed, final long deadline)
+			throws InterruptedException {
+		if (future.isDone()) {
+			return;
+		}
+		AtomicBoolean holdsPermit = this.permitHolders.get(Thread.currentThread());
+		boolean released = (holdsPermit != null) && holdsPermit.compareAndSet(true, false);
+		if (released) {
+			this.permits.release();
+		}
+		try {
+			ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+				public boolean block () throws InterruptedException {
+					try {
+						if (timed) {
+							future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+						} else {
+							future.get();
+						}
+					} catch (ExecutionException | CancellationException | TimeoutException e) {
+						// reported by caller
+					}
+					return true;
+				}
+
+				public boolean isReleasable () {
+					return future.isDone() || (timed && (deadline - System.nanoTime() <= 0));
+				}
+			});
+		} finally {
+			if (released) {
+				// waiter that timed out usually has to detach the task it waited for
+				// to free its permit, so it must not block on permits here
+				if (future.isDone()) {
+					this.permits.acquireUninterruptibly();
+					holdsPermit.set(true);
+				} else if (this.permits.tryAcquire()) {
+					holdsPermit.set(true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stop counting task running in given thread against scheduler capacity.
+	 *
+	 * Used for tasks that were abandoned, but cannot be stopped. Permit of the
+	 * task is released, so that another task can start. Thread of detached task
+	 * remains occupied until the task ends (work-stealing pool keeps spare
+	 * workers for such tasks).
+	 *
+	 * @param thread thread running abandoned task
+	 */
+	public void detach (Thread thread) {
+		AtomicBoolean holdsPermit = this.permitHolders.get(thread);
+		if ((holdsPermit != null) && holdsPermit.compareAndSet(true, false)) {
+			this.permits.release();
+		}
+	}
+}
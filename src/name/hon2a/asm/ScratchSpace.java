@@ -0,0 +1,280 @@
+package name.hon2a.asm;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Manager of scratch space used for temporary plugin folders.
+ *
+ * Scratch folders are created in folder set by @c asm.scratchDir setting (should
+ * be RAM-backed file system, e.g. @c /dev/shm ) or in default temporary folder
+ * if that setting is missing or unusable. Manager keeps pool of empty folders
+ * (@c asm.scratchPoolSize , created in advance) and Reaper returns folders to
+ * the pool after removing their contents instead of removing them. Pooled
+ * folders are removed on JVM exit.
+ *
+ * Data written to scratch folders can be limited by @link Quota quotas @endlink
+ * (@c asm.quotaBytes and @c asm.quotaFiles settings, 0 means unlimited and
+ * is the default).
+ * All charged quotas are summed in counters of bytes and files in use, which are
+ * decreased when folder is released.
+ *
+ * @author %hon2a
+ */
+public final class ScratchSpace {
+
+	/**
+	 * Limit of data written to single scratch folder.
+	 *
+	 * Writers charge quota before (or while) writing files. Once limit is exceeded,
+	 * QuotaExceededException is thrown.
+	 */
+	public final class Quota {
+
+		private final long maxBytes; ///< maximum number of bytes (0 for unlimited)
+		private final long maxFiles; ///< maximum number of files (0 for unlimited)
+		private final AtomicLong bytes = new AtomicLong(); ///< bytes charged so far
+		private final AtomicLong files = new AtomicLong(); ///< files charged so far
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param maxBytes maximum number of bytes (0 for unlimited)
+		 * @param maxFiles maximum number of files (0 for unlimited)
+		 */
+		private Quota (long maxBytes, long maxFiles) {
+			this.maxBytes = maxBytes;
+			this.maxFiles = maxFiles;
+		}
+
+		/**
+		 * Charge written bytes.
+		 *
+		 * @param count number of bytes
+		 * @throws QuotaExceededException in case byte limit is exceeded
+		 */
+		public void chargeBytes (long count) throws QuotaExceededException {
+			long total = this.bytes.addAndGet(count);
+			ScratchSpace.this.addBytesInUse(count);
+			if ((this.maxBytes > 0) && (total > this.maxBytes)) {
+				throw new QuotaExceededException("Data exceed size limit of " + this.maxBytes + " bytes");
+			}
+		}
+
+		/**
+		 * Charge one written file.
+		 *
+		 * @throws QuotaExceededException in case file count limit is exceeded
+		 */
+		public void chargeFile () throws QuotaExceededException {
+			long total = this.files.incrementAndGet();
+			ScratchSpace.this.filesInUse.incrementAndGet();
+			if ((this.maxFiles > 0) && (total > this.maxFiles)) {
+				throw new QuotaExceededException("Data exceed limit of " + this.maxFiles + " files");
+			}
+		}
+
+		/**
+		 * Return all charged bytes and files to scratch space counters.
+		 */
+		private void release () {
+			ScratchSpace.this.addBytesInUse(-this.bytes.getAndSet(0));
+			ScratchSpace.this.filesInUse.addAndGet(-this.files.getAndSet(0));
+		}
+	}
+
+	private static ScratchSpace instance = null; ///< sole instance
+
+	private final File root; ///< folder containing scratch folders
+	private final int poolSize; ///< maximum number of pooled empty folders
+	private final long quotaBytes; ///< byte limit of new quotas
+	private final long quotaFiles; ///< file count limit of new quotas
+	private final Queue<File> pool = new ConcurrentLinkedQueue<File>(); ///< empty folders ready for use
+	private final AtomicInteger pooledCount = new AtomicInteger(); ///< number of folders in pool
+	private final Map<File, Quota> quotas = new ConcurrentHashMap<File, Quota>(); ///< quotas of allocated folders
+	private final AtomicLong bytesInUse = new AtomicLong(); ///< bytes charged by all quotas
+	private final AtomicLong peakBytesInUse = new AtomicLong(); ///< maximum of bytes in use
+	private final AtomicLong filesInUse = new AtomicLong(); ///< files charged by all quotas
+
+	/**
+	 * Private constructor (use ScratchSpace::getInstance()).
+	 */
+	private ScratchSpace () {
+		File configuredRoot = new File(Utils.getSetting("scratchDir", System.getProperty("java.io.tmpdir")));
+		if (!configuredRoot.isDirectory() || !configuredRoot.canWrite()) {
+			configuredRoot = new File(System.getProperty("java.io.tmpdir"));
+		}
+		this.root = configuredRoot;
+		this.poolSize = (int) Utils.getLongSetting("scratchPoolSize", 4);
+		this.quotaBytes = Utils.getLongSetting("quotaBytes", 0);
+		this.quotaFiles = Utils.getLongSetting("quotaFiles", 0);
+	}
+
+	/**
+	 * Retrieve sole scratch space instance, filling folder pool on first call.
+	 *
+	 * @return Scratch space instance.
+	 */
+	public static synchronized ScratchSpace getInstance () {
+		if (instance == null) {
+			instance = new ScratchSpace();
+			for (int i = 0; i < instance.poolSize; ++i) {
+				try {
+					instance.recycle(instance.createDirectory());
+				} catch (IOException e) {
+					break;
+				}
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				public void run() {
+					ScratchSpace.instance.clearPool();
+				}
+			}, "asm-scratch-cleanup"));
+		}
+		return instance;
+	}
+
+	/**
+	 * Getter for ScratchSpace::root.
+	 *
+	 * @return Folder containing scratch folders.
+	 */
+	public File getRoot () {
+		return this.root;
+	}
+
+	/**
+	 * @return Number of bytes currently charged to quotas of allocated folders.
+	 */
+	public long getBytesInUse () {
+		return this.bytesInUse.get();
+	}
+
+	/**
+	 * @return Maximum number of bytes in use since start.
+	 */
+	public long getPeakBytesInUse () {
+		return this.peakBytesInUse.get();
+	}
+
+	/**
+	 * @return Number of files currently charged to quotas of allocated folders.
+	 */
+	public long getFilesInUse () {
+		return this.filesInUse.get();
+	}
+
+	/**
+	 * Allocate empty scratch folder (from pool if possible).
+	 *
+	 * @return File descriptor of allocated folder.
+	 * @throws IOException in case folder cannot be created
+	 */
+	public File allocateDirectory () throws IOException {
+		File folder = this.pool.poll();
+		if (folder != null) {
+			this.pooledCount.decrementAndGet();
+			if (folder.isDirectory()) {
+				return folder;
+			}
+		}
+		return this.createDirectory();
+	}
+
+	/**
+	 * Create quota for scratch folder.
+	 *
+	 * Quota is released when folder is released (see ScratchSpace::release()).
+	 *
+	 * @param folder allocated scratch folder
+	 * @return Quota with limits from settings.
+	 */
+	public Quota createQuota (File folder) {
+		Quota quota = new Quota(this.quotaBytes, this.quotaFiles);
+		Quota previous = this.quotas.put(folder, quota);
+		if (previous != null) {
+			previous.release();
+		}
+		return quota;
+	}
+
+	/**
+	 * Release quota of scratch folder whose contents have been removed.
+	 *
+	 * @param folder scratch folder
+	 */
+	public void release (File folder) {
+		Quota quota = this.quotas.remove(folder);
+		if (quota != null) {
+			quota.release();
+		}
+	}
+
+	/**
+	 * Check whether emptied folder should be returned to pool instead of being removed.
+	 *
+	 * @param folder scratch folder
+	 * @return True if folder belongs to scratch space and pool is not full.
+	 */
+	public boolean isRecyclable (File folder) {
+		return (this.pooledCount.get() < this.poolSize)
+				&& this.root.equals(folder.getParentFile())
+				&& folder.getName().startsWith(Utils.TEMP_FOLDER_PREFIX);
+	}
+
+	/**
+	 * Return empty folder to pool.
+	 *
+	 * @param folder empty scratch folder
+	 */
+	public void recycle (File folder) {
+		this.release(folder);
+		this.pooledCount.incrementAndGet();
+		this.pool.add(folder);
+	}
+
+	/**
+	 * Remove all pooled folders (used on JVM exit).
+	 */
+	private void clearPool () {
+		File folder;
+		while ((folder = this.pool.poll()) != null) {
+			this.pooledCount.decrementAndGet();
+			Utils.removeDirectoryAndContents(folder);
+		}
+	}
+
+	/**
+	 * Create new scratch folder.
+	 *
+	 * @return File descriptor of created folder.
+	 * @throws IOException in case folder cannot be created
+	 */
+	private File createDirectory () throws IOException {
+		String processId = Utils.getProcessId();
+		return Files.createTempDirectory(this.root.toPath(),
+				Utils.TEMP_FOLDER_PREFIX + ((processId == null) ? "" : processId + "_")).toFile();
+	}
+
+	/**
+	 * Add to counter of bytes in use and update its maximum.
+	 *
+	 * @param count number of bytes (negative for released bytes)
+	 */
+	private void addBytesInUse (long count) {
+		long current = this.bytesInUse.addAndGet(count);
+		long peak;
+		while (current > (peak = this.peakBytesInUse.get())) {
+			if (this.peakBytesInUse.compareAndSet(peak, current)) {
+				break;
+			}
+		}
+	}
+}
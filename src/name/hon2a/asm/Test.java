@@ -5,8 +5,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.StringWriter;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
@@ -66,6 +72,10 @@ public abstract class Test implements Runnable {
 	private Map<String, String> sources;
 	private Map<String, String> params; ///< associative array of test parameters
 	private File outputFolder; ///< temporary folder for test output
+	private List<String> savedFiles = Collections.synchronizedList(new ArrayList<String>()); ///< paths of saved output files
+	private List<Prerequisite> prerequisites = new ArrayList<Prerequisite>(); ///< prerequisites shared with other tests
+	private ArtifactStore artifacts = null; ///< artifacts shared with other tests of plugin (null if test is used alone)
+	private Map<String, String> options = null; ///< result-changing options of plugin running this test (null if test is used alone)
 	
 	private int stage = STAGE_INITIAL; ///< stage of execution (see detailed description of Test)
 	private boolean suppressExceptions = false; ///< suppress exceptions flag
@@ -73,6 +83,13 @@ public abstract class Test implements Runnable {
 
 	private Map<String, Goal> goals; ///< test goals
 	private Error error; ///< error in case whole test fails
+	private long runTime = 0; ///< duration of Test::run() (in nanoseconds)
+	private long timeout = 0; ///< wall-clock time limit of test run (in milliseconds, 0 to use plugin default)
+	private volatile boolean started = false; ///< true once Test::run() has been called
+	private volatile long startTime = 0; ///< time of Test::run() call (System::nanoTime())
+	private volatile Thread runner = null; ///< thread running test (null if test is not running)
+	private boolean abandoned = false; ///< true if test was abandoned before finishing (see Test::abandon())
+	private volatile boolean cacheable = true; ///< false if results depend on conditions of the run (see Test::markUncacheable())
 
 	/**
 	 * Full constructor initializing sources, parameters and output folder.
@@ -216,6 +233,279 @@ public abstract class Test implements Runnable {
 		return this.error;
 	}
 
+	/**
+	 * Getter for Test::runTime.
+	 *
+	 * @return Duration of test run in nanoseconds (0 if test has not been run).
+	 */
+	public final long getRunTime () {
+		return this.runTime;
+	}
+
+	/**
+	 * Declare prerequisite of this test (see Prerequisite).
+	 *
+	 * Test is not run if any of its prerequisites does not hold. Prerequisites
+	 * must be declared before test is run.
+	 *
+	 * @param prerequisite prerequisite (may be shared with other tests)
+	 */
+	public final void addPrerequisite (Prerequisite prerequisite) {
+		this.prerequisites.add(prerequisite);
+	}
+
+	/**
+	 * Getter for Test::prerequisites.
+	 *
+	 * @return Prerequisites of this test.
+	 */
+	final List<Prerequisite> getPrerequisites () {
+		return this.prerequisites;
+	}
+
+	/**
+	 * Setter for Test::artifacts.
+	 *
+	 * Files loaded by Test::loadTextFile() and Test::loadXmlFile() are then
+	 * loaded and parsed only once for all tests sharing the store.
+	 *
+	 * @param artifacts artifact store of plugin running this test
+	 */
+	final void setArtifacts (ArtifactStore artifacts) {
+		this.artifacts = artifacts;
+	}
+
+	/**
+	 * Setter for Test::options.
+	 *
+	 * @param options effective values of plugin options that change results (see Plugin::getResultOptions())
+	 */
+	final void setOptions (Map<String, String> options) {
+		this.options = options;
+	}
+
+	/**
+	 * Retrieve option that changes test results (e.g. budget of student code).
+	 *
+	 * Options of plugin running this test are used (they may be set in plugin
+	 * configuration). Test used alone uses framework settings (see Utils::getSetting()).
+	 *
+	 * @param name option name
+	 * @param defaultValue value to be used if option is not set
+	 * @return Option value or default value.
+	 */
+	protected final String getOption (String name, String defaultValue) {
+		if (this.options == null) {
+			return Utils.getSetting(name, defaultValue);
+		}
+		return this.options.containsKey(name) ? this.options.get(name) : defaultValue;
+	}
+
+	/**
+	 * Getter for Test::timeout.
+	 *
+	 * @return Wall-clock time limit of test run in milliseconds (0 if plugin default is used).
+	 */
+	public final long getTimeout () {
+		return this.timeout;
+	}
+
+	/**
+	 * Setter for Test::timeout.
+	 *
+	 * Overrides @c testTimeout option of TesterPlugin for this test.
+	 *
+	 * @param timeout wall-clock time limit of test run in milliseconds (0 to use plugin default)
+	 */
+	public final void setTimeout (long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return True if test run has started (it may have finished already).
+	 */
+	final boolean hasStarted () {
+		return this.started;
+	}
+
+	/**
+	 * Getter for Test::startTime.
+	 *
+	 * @return Time of test run start (System::nanoTime()), valid only if Test::hasStarted().
+	 */
+	final long getStartTime () {
+		return this.startTime;
+	}
+
+	/**
+	 * Getter for Test::outputFolder.
+	 *
+	 * @return Folder for test output (may be null).
+	 */
+	final File getOutputFolder () {
+		return this.outputFolder;
+	}
+
+	/**
+	 * Getter for Test::sources.
+	 *
+	 * @return Associative array of test sources.
+	 */
+	final Map<String, String> getSources () {
+		return this.sources;
+	}
+
+	/**
+	 * Getter for Test::savedFiles.
+	 *
+	 * @return Paths of output files saved by Test::saveTextFile() and Test::saveBinaryFile()
+	 *		(relative to output folder).
+	 */
+	final List<String> getSavedFiles () {
+		synchronized (this.savedFiles) {
+			return new ArrayList<String>(this.savedFiles);
+		}
+	}
+
+	/**
+	 * Retrieve fingerprint of test inputs.
+	 *
+	 * Tests that return fingerprint are memoized by TesterPlugin (see TestCache):
+	 * if test with the same fingerprint has been run before, its goals, error and
+	 * saved output files are reused instead of running it again. Fingerprint must
+	 * therefore cover everything that affects test results. Tests that depend
+	 * only on contents of their sources and on their parameters can simply return
+	 * Test::fingerprintInputs().
+	 *
+	 * @return Fingerprint of test inputs or null if test should not be memoized (default).
+	 */
+	public String getFingerprint () {
+		return null;
+	}
+
+	/**
+	 * Compute fingerprint of test class, contents of all test sources (files or
+	 * whole folders), test parameters and options that change test results
+	 * (deadlines, budgets and isolation of student code, see Test::getOption()).
+	 *
+	 * Only output files saved using Test::saveTextFile() or Test::saveBinaryFile()
+	 * are restored for memoized tests, so tests using this fingerprint should
+	 * not write output in any other way.
+	 *
+	 * @return Fingerprint (hexadecimal hash) or null if some source cannot be read.
+	 * @see Test::getFingerprint()
+	 */
+	protected final String fingerprintInputs () {
+		try {
+			MessageDigest digest = DiskCache.createDigest();
+			DiskCache.update(digest, this.getClass().getName());
+			try {
+				File location = new File(this.getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
+				DiskCache.update(digest, Long.toString(location.lastModified()));
+			} catch (Exception e) {
+			}
+			for (Map.Entry<String, String> source : new TreeMap<String, String>(this.sources).entrySet()) {
+				DiskCache.update(digest, source.getKey());
+				if (source.getValue() == null) {
+					DiskCache.update(digest, null);
+					continue;
+				}
+				File sourceFile = new File(source.getValue());
+				List<File> files = sourceFile.isDirectory()
+						? Utils.listFiles(sourceFile)
+						: Collections.singletonList(sourceFile);
+				for (File file : files) {
+					if (!file.exists()) {
+						DiskCache.update(digest, null);
+						continue;
+					}
+					DiskCache.update(digest, file.getAbsolutePath().substring(sourceFile.getAbsolutePath().length()));
+					DiskCache.update(digest, Long.toString(file.length()));
+					digest.update(Files.readAllBytes(file.toPath()));
+				}
+			}
+			DiskCache.update(digest, "--");
+			for (Map.Entry<String, String> param : new TreeMap<String, String>(this.params).entrySet()) {
+				DiskCache.update(digest, param.getKey());
+				DiskCache.update(digest, param.getValue());
+			}
+			DiskCache.update(digest, "--");
+			for (String option : Plugin.RESULT_OPTIONS) {
+				DiskCache.update(digest, option);
+				DiskCache.update(digest, this.getOption(option, null));
+			}
+			DiskCache.update(digest, Long.toString(this.timeout));
+			return DiskCache.toKey(digest);
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Finish test with memoized results instead of running it (see TestCache).
+	 *
+	 * Goals and output files must be restored by caller.
+	 *
+	 * @param error memoized test error (null if test finished successfully)
+	 */
+	final void restore (Error error) {
+		this.error = error;
+		this.stage = STAGE_CLEANUP;
+	}
+
+	/**
+	 * Finish unfinished test with error and interrupt thread running it.
+	 *
+	 * Java threads cannot be stopped safely, so test body may continue running
+	 * until it checks its interrupted status (its thread is detached from
+	 * Scheduler meanwhile). Its results are ignored, though, and it is not
+	 * allowed to save any more output files.
+	 *
+	 * @param error error explaining why test was abandoned
+	 * @return True if test was abandoned, false if it had finished already.
+	 */
+	final synchronized boolean abandon (Error error) {
+		if (this.stage == STAGE_CLEANUP) {
+			return false;
+		}
+		this.abandoned = true;
+		this.error = error;
+		this.stage = STAGE_CLEANUP;
+		if (this.started) {
+			this.runTime = System.nanoTime() - this.startTime;
+		}
+		Thread thread = this.runner;
+		if (thread != null) {
+			thread.interrupt();
+			Scheduler.getInstance().detach(thread);
+		}
+		return true;
+	}
+
+	/**
+	 * @return True if test was abandoned (see Test::abandon()).
+	 */
+	private synchronized boolean isAbandoned () {
+		return this.abandoned;
+	}
+
+	/**
+	 * Mark test results as dependent on conditions of the run.
+	 *
+	 * Such results (e.g. student code exceeding its budget or crash of worker
+	 * JVM) are neither memoized by TestCache nor stored in ResultCache.
+	 */
+	protected final void markUncacheable () {
+		this.cacheable = false;
+	}
+
+	/**
+	 * @return True if test results may be cached (test was not abandoned nor marked by Test::markUncacheable()).
+	 */
+	final boolean isCacheable () {
+		return this.cacheable && !this.isAbandoned();
+	}
+
 	/**
 	 * @return True if test has failed, false otherwise.
 	 */
@@ -253,21 +543,37 @@ public abstract class Test implements Runnable {
 	 * @see Test::doTest()
 	 */
 	public final void run () {
+		long startTime = System.nanoTime();
+		Error runError = null;
 		try {
-			if (this.stage != STAGE_SET_GOALS) {
-				this.triggerError("Test can be run only once.", ErrorType.USE_ERROR);
+			synchronized (this) {
+				if (this.stage != STAGE_SET_GOALS) {
+					this.triggerError("Test can be run only once.", ErrorType.USE_ERROR);
+				}
+				this.stage = STAGE_DO_TEST;
+				this.startTime = startTime;
+				this.runner = Thread.currentThread();
+				this.started = true;
 			}
-			this.stage = STAGE_DO_TEST;
 			this.doTest();
 			this.activateExceptions();
 		} catch (TestException e) {
-			this.error = new Error(Utils.getMessageTrace(e));
+			runError = new Error(Utils.getMessageTrace(e));
 		} catch (Exception e) {
-			this.error = new Error(new StringBuilder("Runtime error")
+			runError = new Error(new StringBuilder("Runtime error")
 					  .append(Utils.indent(Utils.getMessageTrace(e, true)))
 					  .toString());
 		}
-		this.stage = STAGE_CLEANUP;
+		synchronized (this) {
+			this.runner = null;
+			if (!this.abandoned) {
+				this.error = runError;
+				this.stage = STAGE_CLEANUP;
+				this.runTime = System.nanoTime() - startTime;
+			}
+		}
+		// abandoned test may have been interrupted (thread is reused by Scheduler)
+		Thread.interrupted();
 	}
 
 	/**
@@ -495,7 +801,7 @@ public abstract class Test implements Runnable {
 	 */
 	protected final String loadTextFile (File source) throws TestException {
 		try {
-			return Utils.loadTextFile(source);
+			return (this.artifacts != null) ? this.artifacts.getText(source) : Utils.loadTextFile(source);
 		} catch (Exception e) {
 			this.triggerError("Cannot load file", e);
 			return null;
@@ -511,6 +817,9 @@ public abstract class Test implements Runnable {
 	 * @throws TestException with generic message if file could not be loaded
 	 */
 	protected final Document loadXmlFile (File source, boolean validate) throws TestException {
+		if (this.artifacts != null) {
+			return this.loadSharedXmlFile(source, validate);
+		}
 		String xmlString = this.loadTextFile(source);
 
 		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
@@ -534,6 +843,29 @@ public abstract class Test implements Runnable {
 		return xmlDocument;
 	}
 
+	/**
+	 * Get private copy of XML document parsed once for all tests sharing
+	 * Test::artifacts.
+	 *
+	 * @param source file descriptor of source to be loaded
+	 * @param validate whether to validate XML on parsing
+	 * @return Document contents of file as a XML Document.
+	 * @throws TestException with generic message if file could not be loaded
+	 * @see Test::loadXmlFile(File, boolean)
+	 */
+	private Document loadSharedXmlFile (File source, boolean validate) throws TestException {
+		try {
+			return this.artifacts.getDocument(source, validate);
+		} catch (IOException e) {
+			this.triggerError("Cannot load file", e);
+		} catch (ParserConfigurationException e) {
+			this.triggerError("XML parser cannot be initialized", e);
+		} catch (Exception e) {
+			this.triggerError("XML cannot be parsed", e);
+		}
+		return null;
+	}
+
 	/**
 	 * Load and parse XML file without validation.
 	 *
@@ -565,6 +897,10 @@ public abstract class Test implements Runnable {
 			this.triggerError("Cannot save file (output folder is not set)", ErrorType.CODE_ERROR);
 			return;
 		}
+		if (this.isAbandoned()) {
+			this.triggerError("Cannot save file (test has been abandoned)", ErrorType.CODE_ERROR);
+			return;
+		}
 
 		try {
 			if (binary) {
@@ -572,6 +908,7 @@ public abstract class Test implements Runnable {
 			} else {
 				Utils.saveTextFile(this.getOutputFile(path), contents, charsetName);
 			}
+			this.savedFiles.add(path);
 		} catch (IOException e) {
 			this.triggerError("Cannot save file (" + path + ")", e);
 		}
@@ -0,0 +1,236 @@
+package name.hon2a.asm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * On-disk cache of results of individual @link Test tests @endlink .
+ *
+ * When only part of submission changes, tests whose inputs did not change need
+ * not be run again. Tests declare fingerprint of their inputs (see
+ * Test::getFingerprint()) and TesterPlugin reuses goals, error and saved output
+ * files of previous run of test with the same fingerprint.
+ *
+ * Cache is stored in folder set by @c asm.testCacheDir setting (cache is disabled
+ * if it's not set). Least recently used entries are removed once total size of
+ * cache exceeds @c asm.testCacheMaxBytes . Like ResultCache, whole cache is
+ * cleared when @c asm.cacheVersion setting changes.
+ *
+ * @author %hon2a
+ */
+public final class TestCache {
+
+	/**
+	 * Memoized result of single goal.
+	 */
+	private static final class GoalResult {
+
+		private boolean reached; ///< reached flag
+		private TestError error; ///< goal error (may be null)
+	}
+
+	private static final String RESULTS_FILE = "results"; ///< name of file with test results in entry folder
+	private static final String OUTPUT_FOLDER = "output"; ///< name of folder with saved output files in entry folder
+
+	private static TestCache instance = null; ///< sole instance
+
+	private final DiskCache store; ///< underlying entry store (null if cache is disabled)
+
+	/**
+	 * Private constructor (use TestCache::getInstance()).
+	 */
+	private TestCache () {
+		String folder = Utils.getSetting("testCacheDir", "");
+		this.store = folder.equals("") ? null
+				: new DiskCache(new File(folder), Utils.getLongSetting("testCacheMaxBytes", 256L * 1024 * 1024),
+						Utils.getSetting("cacheVersion", ""));
+	}
+
+	/**
+	 * Retrieve sole test cache instance.
+	 *
+	 * @return Test cache instance.
+	 */
+	public static synchronized TestCache getInstance () {
+		if (instance == null) {
+			instance = new TestCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * @return True if cache folder is set, false otherwise.
+	 */
+	public boolean isEnabled () {
+		return (this.store != null);
+	}
+
+	/**
+	 * Finish test with memoized results if there are any.
+	 *
+	 * @param fingerprint fingerprint of test inputs
+	 * @param test test that has not been run yet
+	 * @return True if test results were restored, false if test needs to be run.
+	 */
+	public boolean restore (String fingerprint, Test test) {
+		File entryFolder = this.store.get(fingerprint);
+		if (entryFolder == null) {
+			return false;
+		}
+		try {
+			Map<String, GoalResult> goalResults = new LinkedHashMap<String, GoalResult>();
+			Error error = null;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(new File(entryFolder, RESULTS_FILE))));
+			try {
+				int goalCount = in.readInt();
+				for (int i = 0; i < goalCount; ++i) {
+					String id = DiskCache.readString(in);
+					GoalResult result = new GoalResult();
+					result.reached = in.readBoolean();
+					if (in.readBoolean()) {
+						String message = relocate(DiskCache.readString(in), test, false);
+						String sourcePath = in.readBoolean()
+								? relocate(DiskCache.readString(in), test, false)
+								: null;
+						result.error = new TestError(message, sourcePath, in.readInt());
+					}
+					goalResults.put(id, result);
+				}
+				if (in.readBoolean()) {
+					error = new Error(relocate(DiskCache.readString(in), test, false));
+				}
+			} finally {
+				in.close();
+			}
+			if (!goalResults.keySet().equals(test.getResults().keySet())) {
+				return false;
+			}
+
+			File outputFolder = new File(entryFolder, OUTPUT_FOLDER);
+			for (File file : Utils.listFiles(outputFolder)) {
+				String path = file.getAbsolutePath().substring(outputFolder.getAbsolutePath().length() + 1);
+				File dest = new File(test.getOutputFolder(), path);
+				dest.getParentFile().mkdirs();
+				Files.copy(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			for (Map.Entry<String, GoalResult> goalResult : goalResults.entrySet()) {
+				Goal goal = test.getResults().get(goalResult.getKey());
+				goal.reached = goalResult.getValue().reached;
+				goal.error = goalResult.getValue().error;
+			}
+			test.restore(error);
+			return true;
+		} catch (IOException e) {
+			// entry may have been evicted by another process
+			this.store.discard(fingerprint);
+			return false;
+		}
+	}
+
+	/**
+	 * Store results of finished test.
+	 *
+	 * @param fingerprint fingerprint of test inputs
+	 * @param test finished test
+	 * @throws IOException in case entry cannot be written
+	 */
+	public void store (String fingerprint, Test test) throws IOException {
+		if (this.store.contains(fingerprint)) {
+			return;
+		}
+		File tempFolder = this.store.prepare(fingerprint);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(new File(tempFolder, RESULTS_FILE))));
+			try {
+				Map<String, Goal> goals = test.getResults();
+				out.writeInt(goals.size());
+				for (Map.Entry<String, Goal> goalPair : goals.entrySet()) {
+					DiskCache.writeString(out, goalPair.getKey());
+					Goal goal = goalPair.getValue();
+					out.writeBoolean(goal.reached);
+					out.writeBoolean(goal.error != null);
+					if (goal.error != null) {
+						DiskCache.writeString(out, relocate(goal.error.message, test, true));
+						out.writeBoolean(goal.error.sourcePath != null);
+						if (goal.error.sourcePath != null) {
+							DiskCache.writeString(out, relocate(goal.error.sourcePath, test, true));
+						}
+						out.writeInt(goal.error.lineNumber);
+					}
+				}
+				out.writeBoolean(test.getError() != null);
+				if (test.getError() != null) {
+					DiskCache.writeString(out, relocate(test.getError().toString(), test, true));
+				}
+			} finally {
+				out.close();
+			}
+
+			List<String> savedFiles = test.getSavedFiles();
+			File outputFolder = new File(tempFolder, OUTPUT_FOLDER);
+			for (String path : savedFiles) {
+				File source = new File(test.getOutputFolder(), path);
+				if (source.isFile()) {
+					File dest = new File(outputFolder, path);
+					dest.getParentFile().mkdirs();
+					Files.copy(source.toPath(), dest.toPath());
+				}
+			}
+		} catch (IOException e) {
+			Utils.removeDirectoryAndContents(tempFolder);
+			throw e;
+		}
+		this.store.commit(fingerprint, tempFolder);
+	}
+
+	/**
+	 * Replace paths of test sources in error messages with placeholders or vice versa.
+	 *
+	 * Sources of memoized test are located in temporary folder of different plugin
+	 * run, so their paths need to be replaced by paths of current sources (which
+	 * are then hidden in plugin response, see Plugin::prepareErrorDetails()).
+	 *
+	 * @param text error message
+	 * @param test test whose sources are used
+	 * @param toPlaceholders true to replace paths with placeholders, false to
+	 *		replace placeholders with paths
+	 * @return Error message with replaced paths.
+	 */
+	private static String relocate (String text, Test test, boolean toPlaceholders) {
+		if (text == null) {
+			return null;
+		}
+		// longer paths first, so that nested sources are replaced correctly
+		Map<String, String> sources = new TreeMap<String, String>(new Comparator<String>() {
+			public int compare(String a, String b) {
+				return (a.length() != b.length()) ? (b.length() - a.length()) : a.compareTo(b);
+			}
+		});
+		for (Map.Entry<String, String> source : test.getSources().entrySet()) {
+			if (source.getValue() != null) {
+				sources.put(new File(source.getValue()).getAbsolutePath(), "${source:" + source.getKey() + "}");
+			}
+		}
+		for (Map.Entry<String, String> source : sources.entrySet()) {
+			text = toPlaceholders
+					? text.replace(source.getKey(), source.getValue())
+					: text.replace(source.getValue(), source.getKey());
+		}
+		return text;
+	}
+}
@@ -1,9 +1,16 @@
 package name.hon2a.asm;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Abstract plugin that separates data processing from result assessment by using
@@ -112,37 +119,211 @@ public abstract class TesterPlugin extends Plugin {
 
 	private List<Test> tests = new ArrayList<Test>(); ///< list of used tests
 	private Map[] testResults; ///< array of results maps of all tests
+	private final ArtifactStore artifacts = new ArtifactStore(); ///< files and documents shared by tests
 
 	/**
 	 * Run all tests added to this plugin in TesterPlugin::setUp() method override.
 	 *
-	 * Tests are run in parallel threads and once finished, their results are saved.
-	 * It is recommended to assign exclusive output folders to individual tests
-	 * to avoid unwanted test output clashes.
+	 * Tests are run in parallel (as tasks of shared Scheduler) and once finished,
+	 * their results are saved. It is recommended to assign exclusive output folders
+	 * to individual tests to avoid unwanted test output clashes.
+	 *
+	 * Duration of every test run is recorded as @c test:TEST_NAME phase (see
+	 * Plugin::addTiming()), memoized tests as @c memoized:TEST_NAME .
+	 *
+	 * If TestCache is enabled, tests that declare fingerprint of their inputs
+	 * (see Test::getFingerprint()) are not run if their results are memoized
+	 * already, and results of other tests are memoized after they finish.
+	 *
+	 * Test runs can be limited by wall-clock deadlines (in milliseconds, no limit
+	 * by default): @c testTimeout option limits every test run (see also
+	 * Test::setTimeout()) and @c pluginTimeout option limits execution of all
+	 * tests together. Tests that do not finish in time are abandoned (see
+	 * Test::abandon()) and fail with error, while results of other tests are
+	 * assessed as usual. Abandoned tests are not memoized and results of plugin
+	 * run with abandoned tests are not stored in ResultCache (the same holds for
+	 * tests marked by Test::markUncacheable()).
+	 *
+	 * Prerequisites of tests (see Test::addPrerequisite()) are checked before any
+	 * test is run, each of them only once (as @c prerequisite:NAME phase). Tests
+	 * with failed prerequisites are not run and fail with prerequisite error.
 	 *
 	 * @throws PluginException in case plugin is interrupted while waiting for tests to finish
 	 */
 	@Override
 	protected final void execute() throws PluginException {
 		int testCount = this.tests.size();
-		Thread[] threads = new Thread[testCount];
+		Future<?>[] futures = new Future<?>[testCount];
+		String[] fingerprints = new String[testCount];
 		this.testResults = new HashMap[testCount];
+		TestCache cache = TestCache.getInstance();
+		Scheduler scheduler = Scheduler.getInstance();
+		Set<Prerequisite> checkedPrerequisites = new HashSet<Prerequisite>();
+		long testTimeout = this.getTimeoutOption("testTimeout");
+		long pluginTimeout = this.getTimeoutOption("pluginTimeout");
+		long pluginDeadline = (pluginTimeout > 0)
+				? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(pluginTimeout)
+				: Long.MAX_VALUE;
 
 		for (int i = 0; i < testCount; ++i) {
 			Test test = this.tests.get(i);
-			threads[i] = new Thread(test);
-			threads[i].start();
+			Error prerequisiteError = this.checkPrerequisites(test, checkedPrerequisites);
+			if (prerequisiteError != null) {
+				test.restore(prerequisiteError);
+				continue;
+			}
+			if (cache.isEnabled()) {
+				long time = System.nanoTime();
+				fingerprints[i] = test.getFingerprint();
+				if ((fingerprints[i] != null) && cache.restore(fingerprints[i], test)) {
+					fingerprints[i] = null;
+					this.markPhase("memoized:" + test.getName(), time);
+					continue;
+				}
+			}
+			futures[i] = scheduler.submit(test);
+		}
+		for (int i = 0; i < futures.length; ++i) {
+			Test test = this.tests.get(i);
+			if (futures[i] != null) {
+				long timeout = (test.getTimeout() > 0) ? test.getTimeout() : testTimeout;
+				try {
+					if (!this.awaitTest(futures[i], test, timeout, pluginDeadline)) {
+						futures[i].cancel(false);
+						String message;
+						if (!test.hasStarted()) {
+							message = String.format("Test was not started before plugin deadline (%d ms)", pluginTimeout);
+						} else if ((timeout > 0) && (System.nanoTime() - test.getStartTime()
+								>= TimeUnit.MILLISECONDS.toNanos(timeout))) {
+							message = String.format("Test timed out (limit %d ms)", timeout);
+						} else {
+							message = String.format("Test did not finish before plugin deadline (%d ms)", pluginTimeout);
+						}
+						if (!test.abandon(new Error(message))) {
+							// test finished just in time
+							scheduler.await(futures[i]);
+						}
+					}
+				} catch (InterruptedException e) {
+					throw new PluginException("Plugin was interrupted before all tests were finished", e);
+				} catch (ExecutionException e) {
+					// errors (e.g. StackOverflowError) are not caught by Test::run()
+					test.restore(new Error(new StringBuilder("Runtime error")
+							.append(Utils.indent(Utils.getMessageTrace(e.getCause(), true)))
+							.toString()));
+					test.markUncacheable();
+				}
+				this.addTiming("test:" + test.getName(), test.getRunTime());
+			}
+			this.testResults[i] = test.getResults();
+			if (!test.isCacheable()) {
+				this.markUncacheable();
+			} else if (fingerprints[i] != null) {
+				try {
+					cache.store(fingerprints[i], test);
+				} catch (IOException e) {
+					System.err.println(Utils.indentError("Test results could not be cached:",
+							Utils.getMessageTrace(e)));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check prerequisites of test (prerequisites shared with previous tests are
+	 * checked only once).
+	 *
+	 * @param test test
+	 * @param checked prerequisites checked already (updated by this method)
+	 * @return Error of first failed prerequisite or null if all prerequisites hold.
+	 */
+	private Error checkPrerequisites (Test test, Set<Prerequisite> checked) {
+		for (Prerequisite prerequisite : test.getPrerequisites()) {
+			long time = System.nanoTime();
+			Error error = prerequisite.evaluate();
+			if (checked.add(prerequisite)) {
+				this.markPhase("prerequisite:" + prerequisite.getName(), time);
+			}
+			if (error != null) {
+				return error;
+			}
 		}
-		for (int i = 0; i < threads.length; ++i) {
+		return null;
+	}
+
+	/**
+	 * Wait for test to finish or its deadline to pass.
+	 *
+	 * Test deadline is counted from start of test run (tests may wait for free
+	 * Scheduler capacity before they start).
+	 *
+	 * @param future future returned by Scheduler::submit() for test
+	 * @param test test
+	 * @param timeout time limit of test run in milliseconds (0 for no limit)
+	 * @param pluginDeadline deadline of all tests (System::nanoTime(), Long.MAX_VALUE for no limit)
+	 * @return True if test finished, false if deadline has passed.
+	 * @throws InterruptedException in case plugin is interrupted while waiting
+	 * @throws ExecutionException in case test has thrown exception
+	 */
+	private boolean awaitTest (Future<?> future, Test test, long timeout, long pluginDeadline)
+			throws InterruptedException, ExecutionException {
+		Scheduler scheduler = Scheduler.getInstance();
+		while (true) {
+			long now = System.nanoTime();
+			long deadline = pluginDeadline;
+			if (timeout > 0) {
+				// recheck unstarted test after one timeout period
+				long testStart = test.hasStarted() ? test.getStartTime() : now;
+				deadline = Math.min(deadline, testStart + TimeUnit.MILLISECONDS.toNanos(timeout));
+			}
+			if (deadline == Long.MAX_VALUE) {
+				scheduler.await(future);
+				return true;
+			}
+			if (deadline - now <= 0) {
+				if (!future.isDone()) {
+					return false;
+				}
+				scheduler.await(future);
+				return true;
+			}
 			try {
-				threads[i].join();
-			} catch (InterruptedException e) {
-				throw new PluginException("Plugin was interrupted before all tests were finished", e);
+				scheduler.await(future, deadline - now, TimeUnit.NANOSECONDS);
+				return true;
+			} catch (TimeoutException e) {
 			}
-			this.testResults[i] = this.tests.get(i).getResults();
 		}
 	}
 
+	/**
+	 * Retrieve timeout option.
+	 *
+	 * @param name option name
+	 * @return Timeout in milliseconds (0 if option is not set).
+	 * @throws PluginUseException in case option value is not a number
+	 */
+	private long getTimeoutOption (String name) throws PluginUseException {
+		String value = this.getOption(name, "0");
+		try {
+			return Math.max(0, Long.parseLong(value));
+		} catch (NumberFormatException e) {
+			throw new PluginUseException("Invalid value of " + name + " option: " + value, e);
+		}
+	}
+
+	/**
+	 * Getter for TesterPlugin::artifacts.
+	 *
+	 * Tests added to this plugin load their files through this store (see
+	 * Test::loadXmlFile()). It can be used to share loaded files with
+	 * prerequisites as well.
+	 *
+	 * @return Artifact store of this plugin run.
+	 */
+	protected final ArtifactStore getArtifacts () {
+		return this.artifacts;
+	}
+
 	/**
 	 * Add test to be used by this plugin.
 	 * 
@@ -151,6 +332,8 @@ public abstract class TesterPlugin extends Plugin {
 	 * @see TesterPlugin::addTestAsCriterion()
 	 */
 	protected int addTest (Test test) {
+		test.setArtifacts(this.artifacts);
+		test.setOptions(this.getResultOptions());
 		this.tests.add(test);
 		return this.tests.size() - 1;
 	}
@@ -1,14 +1,17 @@
 package name.hon2a.asm;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -25,6 +28,55 @@ public class Utils {
 	public static final String INDENT_STRING = "   "; ///< default indentation string
 
 	private static final int BUFFER_SIZE = 2048; ///< default buffer size
+	private static final String SETTING_PREFIX = "asm."; ///< prefix of system properties with framework settings
+	static final String TEMP_FOLDER_PREFIX = "asmTempFolder_"; ///< name prefix of temporary folders
+
+	/**
+	 * Retrieve framework setting.
+	 *
+	 * Framework settings are passed to JVM as system properties prefixed with
+	 * @c asm. (e.g. @c -Dasm.extractOnDemand=true ).
+	 *
+	 * @param name setting name (without prefix)
+	 * @param defaultValue value to be used if setting is not present
+	 * @return Setting value or default value.
+	 */
+	public static String getSetting (String name, String defaultValue) {
+		return System.getProperty(SETTING_PREFIX + name, defaultValue);
+	}
+
+	/**
+	 * Retrieve boolean framework setting.
+	 *
+	 * @param name setting name (without prefix)
+	 * @param defaultValue value to be used if setting is not present
+	 * @return Setting value or default value.
+	 * @see Utils::getSetting()
+	 */
+	public static boolean getBooleanSetting (String name, boolean defaultValue) {
+		String value = getSetting(name, null);
+		return (value == null) ? defaultValue : Boolean.parseBoolean(value.trim());
+	}
+
+	/**
+	 * Retrieve numeric framework setting.
+	 *
+	 * @param name setting name (without prefix)
+	 * @param defaultValue value to be used if setting is not present or is not a number
+	 * @return Setting value or default value.
+	 * @see Utils::getSetting()
+	 */
+	public static long getLongSetting (String name, long defaultValue) {
+		String value = getSetting(name, null);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
 
     /**
      * Copies the contents of the source directory into the second directory.
@@ -54,6 +106,43 @@ public class Utils {
         });
     }
 
+	/**
+	 * Copy file or folder with its contents from any file system (e.g. zip file
+	 * system) to disk.
+	 *
+	 * @param source file or folder to be copied
+	 * @param dest destination file or folder (parent folders are created if needed)
+	 * @param quota quota charged for copied files (may be null)
+	 * @throws IOException
+	 * @throws QuotaExceededException in case copied files exceed quota
+	 * @see Utils::copyDirectory()
+	 */
+	public static void extractPath (final Path source, File dest, final ScratchSpace.Quota quota)
+			throws IOException {
+		final Path targetPath = dest.toPath();
+		Files.walkFileTree(source, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(final Path dir,
+													 final BasicFileAttributes attrs) throws IOException {
+				Files.createDirectories(targetPath.resolve(source.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(final Path file,
+											 final BasicFileAttributes attrs) throws IOException {
+				if (quota != null) {
+					quota.chargeFile();
+					quota.chargeBytes(attrs.size());
+				}
+				Path target = targetPath.resolve(source.relativize(file).toString());
+				Files.createDirectories(target.getParent());
+				Files.copy(file, target, StandardCopyOption.REPLACE_EXISTING);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
 	/**
 	 * Create temporary file with given extension.
 	 *
@@ -63,20 +152,8 @@ public class Utils {
 	 * @see Utils::createTempFile()
 	 */
 	public static File createTempFile (String extension) throws IOException {
-		final File tempFile;
-		tempFile = File.createTempFile("asmTempFile_" + Long.toString(System.nanoTime()),
-				  ((extension == null) ? "" : "." + extension));
-
-		if(!(tempFile.delete()))
-		{
-			throw new IOException("Could not delete temp file: " + tempFile.getName());
-		}
-		if(!(tempFile.createNewFile()))
-		{
-			 throw new IOException("Could not create temp directory: " + tempFile.getName());
-		}
-
-		return tempFile;
+		return Files.createTempFile("asmTempFile_" + Long.toString(System.nanoTime()),
+				  ((extension == null) ? "" : "." + extension)).toFile();
 	}
 
 	/**
@@ -93,23 +170,30 @@ public class Utils {
 	/**
 	 * Create temporary folder.
 	 *
+	 * Folder is allocated in scratch space (see ScratchSpace). Its name contains
+	 * ID of current process, so that folders left behind by crashed processes can
+	 * be recognized (see Reaper).
+	 *
 	 * @return File descriptor of created folder.
 	 * @throws IOException if folder cannot be created
 	 */
 	public static File createTempDirectory () throws IOException {
-		final File tempDir;
-		tempDir = File.createTempFile("asmTempFolder_", Long.toString(System.nanoTime()));
+		return ScratchSpace.getInstance().allocateDirectory();
+	}
 
-		if(!(tempDir.delete()))
-		{
-			throw new IOException("Could not delete temp file: " + tempDir.getName());
-		}
-		if(!(tempDir.mkdir()))
-		{
-			 throw new IOException("Could not create temp directory: " + tempDir.getName());
+	/**
+	 * Retrieve ID of current process.
+	 *
+	 * @return Process ID or null if it cannot be determined.
+	 */
+	public static String getProcessId () {
+		String name = ManagementFactory.getRuntimeMXBean().getName();
+		int separator = name.indexOf('@');
+		if (separator <= 0) {
+			return null;
 		}
-
-		return tempDir;
+		String id = name.substring(0, separator);
+		return id.matches("[0-9]+") ? id : null;
 	}
 
 	/**
@@ -317,9 +401,11 @@ public class Utils {
 	 * @param sourceFolder source folder
 	 * @param zos output stream
 	 * @param pathBase path prefix for added entries
+	 * @param stored true to store entries without compression
 	 * @throws IOException
 	 */
-	private static void zipDirectory (File sourceFolder, ZipOutputStream zos, String pathBase) throws IOException {
+	private static void zipDirectory (File sourceFolder, ZipOutputStream zos, String pathBase,
+			boolean stored) throws IOException {
 		String[] folderContents = sourceFolder.list();
 		byte[] byteBuffer = new byte[BUFFER_SIZE];
 		int count;
@@ -327,16 +413,23 @@ public class Utils {
 			File file = new File(sourceFolder, folderContents[i]);
 			StringBuilder entryBuilder = new StringBuilder(pathBase);
 			if (!pathBase.equals("")) {
-				entryBuilder.append(File.separator);
+				entryBuilder.append("/");
 			}
 			entryBuilder.append(file.getName());
 			if (file.isDirectory()) {
-				zipDirectory(sourceFolder, zos, entryBuilder.toString());
+				zipDirectory(file, zos, entryBuilder.toString(), stored);
 			} else {
+				ZipEntry entry = new ZipEntry(entryBuilder.toString());
+				if (stored) {
+					entry.setMethod(ZipEntry.STORED);
+					entry.setSize(file.length());
+					entry.setCompressedSize(file.length());
+					entry.setCrc(checksum(file));
+				}
 				BufferedInputStream is = null;
 				try {
 					is = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
-					zos.putNextEntry(new ZipEntry(entryBuilder.toString()));
+					zos.putNextEntry(entry);
 					while ((count = is.read(byteBuffer)) != -1) {
 						zos.write(byteBuffer, 0, count);
 					}
@@ -349,21 +442,45 @@ public class Utils {
 		}
 	}
 
+	/**
+	 * Compute CRC-32 checksum of file contents.
+	 *
+	 * @param file source file
+	 * @return CRC-32 checksum.
+	 * @throws IOException
+	 */
+	private static long checksum (File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] byteBuffer = new byte[BUFFER_SIZE];
+		int count;
+		InputStream is = new FileInputStream(file);
+		try {
+			while ((count = is.read(byteBuffer)) != -1) {
+				crc.update(byteBuffer, 0, count);
+			}
+		} finally {
+			is.close();
+		}
+		return crc.getValue();
+	}
+
 	/**
 	 * Pack folder contents into single ZIP archive.
 	 *
 	 * @param sourceFolder source folder
 	 * @param archive destination file
+	 * @param stored true to store files without compression (faster for small
+	 *		or already compressed files)
 	 * @throws FileNotFoundException
 	 * @throws IOException
 	 * @see Utils::unzip()
 	 */
-	public static void zip (File sourceFolder, File archive)
+	public static void zip (File sourceFolder, File archive, boolean stored)
 			  throws FileNotFoundException, IOException {
 		ZipOutputStream zos = null;
 		try {
-			zos = new ZipOutputStream(new FileOutputStream(archive));
-			zipDirectory(sourceFolder, zos, "");
+			zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(archive), BUFFER_SIZE));
+			zipDirectory(sourceFolder, zos, "", stored);
 		} finally {
 			if (zos != null) {
 				zos.close();
@@ -371,6 +488,44 @@ public class Utils {
 		}
 	}
 
+	/**
+	 * Pack folder contents into single ZIP archive (compressed).
+	 *
+	 * @param sourceFolder source folder
+	 * @param archive destination file
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @see Utils::zip(File, File, boolean)
+	 * @see Utils::unzip()
+	 */
+	public static void zip (File sourceFolder, File archive)
+			  throws FileNotFoundException, IOException {
+		zip(sourceFolder, archive, false);
+	}
+
+	/**
+	 * List all files in folder and its subfolders.
+	 *
+	 * @param folder base folder
+	 * @return Files (not folders) sorted by path.
+	 */
+	public static List<File> listFiles (File folder) {
+		List<File> files = new ArrayList<File>();
+		File[] contents = folder.listFiles();
+		if (contents == null) {
+			return files;
+		}
+		Arrays.sort(contents);
+		for (File file : contents) {
+			if (file.isDirectory()) {
+				files.addAll(listFiles(file));
+			} else {
+				files.add(file);
+			}
+		}
+		return files;
+	}
+
 	/**
 	 * Unpack contents of ZIP archive to given folder.
 	 *
@@ -382,37 +537,65 @@ public class Utils {
 	 */
 	public static void unzip (File archive, File destFolder)
 			  throws FileNotFoundException, IOException  {
+		unzip(archive, destFolder, null);
+	}
+
+	/**
+	 * Unpack contents of ZIP archive to given folder, charging unpacked data to quota.
+	 *
+	 * Data are charged while being written, so that unpacking stops as soon as
+	 * quota is exceeded (regardless of sizes declared in archive).
+	 *
+	 * @param archive ZIP archive
+	 * @param destFolder destination folder
+	 * @param quota quota charged for unpacked files (may be null)
+	 * @throws FileNotFoundException
+	 * @throws IOException
+	 * @throws QuotaExceededException in case unpacked data exceed quota
+	 * @see Utils::unzip(File, File)
+	 */
+	public static void unzip (File archive, File destFolder, ScratchSpace.Quota quota)
+			  throws FileNotFoundException, IOException  {
 		ZipInputStream zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(archive)));
-		ZipEntry entry;
-		while ((entry = zis.getNextEntry()) != null) {
-			File destFile = new File(destFolder, entry.getName());
-			if (entry.isDirectory()) {
-				if (destFile.exists() && !destFile.isDirectory()) {
-					destFile.delete();
-				}
-				destFile.mkdirs();
-			} else {
-				if (!destFile.getParentFile().isDirectory()) {
-					destFile.getParentFile().mkdirs();
-				}
+		try {
+			ZipEntry entry;
+			while ((entry = zis.getNextEntry()) != null) {
+				File destFile = new File(destFolder, entry.getName());
+				if (entry.isDirectory()) {
+					if (destFile.exists() && !destFile.isDirectory()) {
+						destFile.delete();
+					}
+					destFile.mkdirs();
+				} else {
+					if (!destFile.getParentFile().isDirectory()) {
+						destFile.getParentFile().mkdirs();
+					}
 
-				int count;
-				byte data[] = new byte[BUFFER_SIZE];
-				BufferedOutputStream dest = null;
-				try {
-					dest = new BufferedOutputStream(new FileOutputStream(destFile), BUFFER_SIZE);
-					while ((count = zis.read(data, 0, BUFFER_SIZE)) != -1) {
-						dest.write(data, 0, count);
+					if (quota != null) {
+						quota.chargeFile();
 					}
-					dest.flush();
-				} finally {
-					if (dest != null) {
-						dest.close();
+					int count;
+					byte data[] = new byte[BUFFER_SIZE];
+					BufferedOutputStream dest = null;
+					try {
+						dest = new BufferedOutputStream(new FileOutputStream(destFile), BUFFER_SIZE);
+						while ((count = zis.read(data, 0, BUFFER_SIZE)) != -1) {
+							if (quota != null) {
+								quota.chargeBytes(count);
+							}
+							dest.write(data, 0, count);
+						}
+						dest.flush();
+					} finally {
+						if (dest != null) {
+							dest.close();
+						}
 					}
 				}
 			}
+		} finally {
+			zis.close();
 		}
-		zis.close();
 	}
 
 	/**
@@ -436,9 +619,9 @@ public class Utils {
 			for (int i = 0; i < contents.length; ++i) {
 				File entry = new File(directory, contents[i]);
 				if (entry.isDirectory()) {
-					done = removeDirectoryAndContents(entry);
+					done = removeDirectoryAndContents(entry) && done;
 				} else {
-					done = entry.delete();
+					done = entry.delete() && done;
 				}
 			}
 		}
@@ -0,0 +1,100 @@
+package name.hon2a.asm;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Prerequisite that XML document is well-formed.
+ *
+ * Document is parsed the same way as by Test::loadXmlFile() (without validation
+ * and namespace processing), but without building document tree. Every test
+ * that parses the document fails if this prerequisite does not hold.
+ *
+ * If artifact store of plugin is supplied (see TesterPlugin::getArtifacts()),
+ * document tree is built through it instead, so that tests loading the document
+ * later get copies of already parsed document.
+ *
+ * @author %hon2a
+ */
+public class WellFormedXml extends Prerequisite {
+
+	private final File source; ///< XML document
+	private final ArtifactStore artifacts; ///< store to parse document in (null to parse it separately)
+
+	/**
+	 * Create prerequisite parsing document separately from tests.
+	 *
+	 * @param source XML document
+	 */
+	public WellFormedXml (File source) {
+		this(source, null);
+	}
+
+	/**
+	 * Create prerequisite parsing document in shared artifact store.
+	 *
+	 * @param source XML document
+	 * @param artifacts artifact store shared with tests (null to parse document separately)
+	 */
+	public WellFormedXml (File source, ArtifactStore artifacts) {
+		super("XML document " + source.getName() + " is well-formed");
+		this.source = source;
+		this.artifacts = artifacts;
+	}
+
+	/**
+	 * Parse XML document.
+	 *
+	 * @throws TestException in case document cannot be loaded or parsed
+	 */
+	@Override
+	protected void check () throws TestException {
+		if (this.artifacts != null) {
+			this.checkShared();
+			return;
+		}
+		String xmlString;
+		try {
+			xmlString = Utils.loadTextFile(this.source);
+		} catch (Exception e) {
+			throw new TestDataException("Cannot load file", e);
+		}
+
+		SAXParser parser;
+		try {
+			SAXParserFactory factory = SAXParserFactory.newInstance();
+			factory.setValidating(false);
+			parser = factory.newSAXParser();
+		} catch (Exception e) {
+			throw new TestCodeException("XML parser cannot be initialized", e);
+		}
+		try {
+			parser.parse(new ByteArrayInputStream(xmlString.getBytes()), new DefaultHandler(),
+					this.source.getAbsolutePath());
+		} catch (Exception e) {
+			throw new TestDataException("XML cannot be parsed", e);
+		}
+	}
+
+	/**
+	 * Parse XML document in shared artifact store.
+	 *
+	 * @throws TestException in case document cannot be loaded or parsed
+	 */
+	private void checkShared () throws TestException {
+		try {
+			this.artifacts.getDocument(this.source, false);
+		} catch (IOException e) {
+			throw new TestDataException("Cannot load file", e);
+		} catch (ParserConfigurationException e) {
+			throw new TestCodeException("XML parser cannot be initialized", e);
+		} catch (Exception e) {
+			throw new TestDataException("XML cannot be parsed", e);
+		}
+	}
+}
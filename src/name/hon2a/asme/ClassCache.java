@@ -0,0 +1,161 @@
+package name.hon2a.asme;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import name.hon2a.asm.DiskCache;
+import name.hon2a.asm.Utils;
+
+/**
+ * On-disk cache of classes compiled from student sources.
+ *
+ * Students often resubmit with unchanged sources. Compiled classes are stored
+ * under hash of contents and names of all compiled sources, compiler version,
+ * compiler options and class path, so that identical source trees are compiled
+ * only once (see CompilerService::compile()). Only successful compilations are
+ * cached, and diagnostics (warnings) of cached compilations are not kept.
+ *
+ * Cache is stored in folder set by @c asm.classCacheDir setting (cache is
+ * disabled if it's not set). Least recently used entries are removed once total
+ * size of cache exceeds @c asm.classCacheMaxBytes . Like other caches (see
+ * name.hon2a.asm.ResultCache), whole cache is cleared when @c asm.cacheVersion
+ * setting changes.
+ *
+ * @author %hon2a
+ */
+public final class ClassCache {
+
+	private static final String CLASS_EXTENSION = ".class"; ///< extension of class files in entry folder
+
+	private static ClassCache instance = null; ///< sole instance
+
+	private final DiskCache store; ///< underlying entry store (null if cache is disabled)
+
+	/**
+	 * Private constructor (use ClassCache::getInstance()).
+	 */
+	private ClassCache () {
+		String folder = Utils.getSetting("classCacheDir", "");
+		this.store = folder.equals("") ? null
+				: new DiskCache(new File(folder), Utils.getLongSetting("classCacheMaxBytes", 64L * 1024 * 1024),
+						Utils.getSetting("cacheVersion", ""));
+	}
+
+	/**
+	 * Retrieve sole class cache instance.
+	 *
+	 * @return Class cache instance.
+	 */
+	public static synchronized ClassCache getInstance () {
+		if (instance == null) {
+			instance = new ClassCache();
+		}
+		return instance;
+	}
+
+	/**
+	 * @return True if cache folder is set, false otherwise.
+	 */
+	public boolean isEnabled () {
+		return (this.store != null);
+	}
+
+	/**
+	 * Compute cache key of compilation.
+	 *
+	 * Sources are identified by their names and contents (not by their location),
+	 * so that the same sources submitted again produce the same key.
+	 *
+	 * @param sources source files
+	 * @param compilerVersion identification of compiler
+	 * @param options compiler options
+	 * @return Cache key (hexadecimal hash).
+	 * @throws IOException in case some source cannot be read
+	 */
+	public String computeKey (List<File> sources, String compilerVersion, List<String> options) throws IOException {
+		List<String> sourceHashes = new ArrayList<String>();
+		for (File source : sources) {
+			MessageDigest digest = DiskCache.createDigest();
+			DiskCache.update(digest, source.getName());
+			digest.update(Files.readAllBytes(source.toPath()));
+			sourceHashes.add(DiskCache.toKey(digest));
+		}
+		Collections.sort(sourceHashes);
+
+		MessageDigest digest = DiskCache.createDigest();
+		DiskCache.update(digest, compilerVersion);
+		DiskCache.update(digest, System.getProperty("java.class.path"));
+		DiskCache.update(digest, Integer.toString(options.size()));
+		for (String option : options) {
+			DiskCache.update(digest, option);
+		}
+		for (String sourceHash : sourceHashes) {
+			DiskCache.update(digest, sourceHash);
+		}
+		return DiskCache.toKey(digest);
+	}
+
+	/**
+	 * Load cached compiled classes.
+	 *
+	 * @param key cache key (see ClassCache::computeKey())
+	 * @return Successful compilation with cached classes, or null if there is no such entry.
+	 */
+	public JavaCompilation restore (String key) {
+		File entryFolder = this.store.get(key);
+		if (entryFolder == null) {
+			return null;
+		}
+		try {
+			Map<String, byte[]> classes = new TreeMap<String, byte[]>();
+			File[] classFiles = entryFolder.listFiles();
+			if (classFiles == null) {
+				throw new IOException("Cache entry cannot be listed");
+			}
+			for (File classFile : classFiles) {
+				String className = classFile.getName();
+				if (className.endsWith(CLASS_EXTENSION)) {
+					classes.put(className.substring(0, className.length() - CLASS_EXTENSION.length()),
+							Files.readAllBytes(classFile.toPath()));
+				}
+			}
+			return new JavaCompilation(true, classes, new ArrayList<Diagnostic<? extends JavaFileObject>>());
+		} catch (IOException e) {
+			// entry may have been evicted by another process
+			this.store.discard(key);
+			return null;
+		}
+	}
+
+	/**
+	 * Store classes of successful compilation.
+	 *
+	 * @param key cache key (see ClassCache::computeKey())
+	 * @param compilation successful compilation
+	 * @throws IOException in case entry cannot be written
+	 */
+	public void store (String key, JavaCompilation compilation) throws IOException {
+		if (this.store.contains(key)) {
+			return;
+		}
+		File tempFolder = this.store.prepare(key);
+		try {
+			for (Map.Entry<String, byte[]> compiledClass : compilation.getClasses().entrySet()) {
+				Files.write(new File(tempFolder, compiledClass.getKey() + CLASS_EXTENSION).toPath(),
+						compiledClass.getValue());
+			}
+		} catch (IOException e) {
+			Utils.removeDirectoryAndContents(tempFolder);
+			throw e;
+		}
+		this.store.commit(key, tempFolder);
+	}
+}
@@ -0,0 +1,198 @@
+package name.hon2a.asme;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import name.hon2a.asm.Utils;
+
+/**
+ * Process-wide Java compiler keeping its file managers warm between compilations.
+ *
+ * Standard file manager of compiler indexes platform classes (@c java.* ,
+ * @c org.w3c.dom , @c org.xml.sax ...) and libraries on class path, which is
+ * major part of cost of compiling small source tree. Service keeps pool of
+ * standard file managers and reuses them for subsequent compilations, so that
+ * long-running graders (see name.hon2a.asm.PluginDaemon and
+ * name.hon2a.asm.PluginBatch) index platform classes only once.
+ *
+ * Every compilation still runs in its own compiler task with its own diagnostics
+ * and in-memory output (see MemoryFileManager), so compilations running in
+ * parallel do not share anything but the file manager they borrowed. File manager
+ * is used by one compilation at a time and is replaced by new one after
+ * @c asm.compilerReuse compilations (50 by default, see
+ * name.hon2a.asm.Utils::getSetting()) to bound memory held by its caches.
+ *
+ * Classes compiled from unchanged sources can be reused across runs (see
+ * ClassCache).
+ *
+ * @author %hon2a
+ */
+public final class CompilerService {
+
+	/// name of compiler class bundled with framework (used if runtime does not provide compiler)
+	private static final String BUNDLED_COMPILER = "com.sun.tools.javac.api.JavacTool";
+
+	/**
+	 * Standard file manager with number of compilations it was used for.
+	 */
+	private static final class Context {
+
+		private final StandardJavaFileManager fileManager; ///< warm standard file manager
+		private int useCount = 0; ///< number of compilations file manager was used for
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param fileManager standard file manager
+		 */
+		private Context (StandardJavaFileManager fileManager) {
+			this.fileManager = fileManager;
+		}
+	}
+
+	private static final List<String> OPTIONS = Collections.emptyList(); ///< compiler options
+
+	private static CompilerService instance = null; ///< sole instance
+
+	private final JavaCompiler compiler; ///< Java compiler
+	private final String compilerVersion; ///< identification of compiler (see ClassCache::computeKey())
+	private final int maxUseCount; ///< number of compilations after which file manager is replaced
+	private final Deque<Context> idleContexts = new ArrayDeque<Context>(); ///< file managers not used at the moment
+
+	/**
+	 * Private constructor (use CompilerService::getInstance()).
+	 *
+	 * @param compiler Java compiler
+	 */
+	private CompilerService (JavaCompiler compiler) {
+		this.compiler = compiler;
+		this.compilerVersion = compiler.getClass().getName() + " " + System.getProperty("java.version");
+		this.maxUseCount = (int) Math.max(1, Utils.getLongSetting("compilerReuse", 50));
+	}
+
+	/**
+	 * Retrieve sole service instance.
+	 *
+	 * @return Compiler service.
+	 * @throws IOException in case no Java compiler is available
+	 */
+	public static synchronized CompilerService getInstance () throws IOException {
+		if (instance == null) {
+			instance = new CompilerService(CompilerService.findCompiler());
+		}
+		return instance;
+	}
+
+	/**
+	 * Get Java compiler of runtime, or compiler bundled with framework.
+	 *
+	 * @return Java compiler.
+	 * @throws IOException in case no compiler is available
+	 */
+	private static JavaCompiler findCompiler () throws IOException {
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler != null) {
+			return compiler;
+		}
+		try {
+			return (JavaCompiler) Class.forName(BUNDLED_COMPILER).getMethod("create").invoke(null);
+		} catch (Exception e) {
+			throw new IOException("Java compiler is not available", e);
+		}
+	}
+
+	/**
+	 * Compile Java sources in single compiler task, or load classes compiled from
+	 * the same sources before from ClassCache (if it is enabled).
+	 *
+	 * @param sources source files
+	 * @return Compilation result.
+	 * @throws IOException in case sources cannot be read
+	 */
+	public JavaCompilation compile (List<File> sources) throws IOException {
+		ClassCache cache = ClassCache.getInstance();
+		if (!cache.isEnabled()) {
+			return this.compileSources(sources);
+		}
+		String key = cache.computeKey(sources, this.compilerVersion, OPTIONS);
+		JavaCompilation compilation = cache.restore(key);
+		if (compilation != null) {
+			return compilation;
+		}
+		compilation = this.compileSources(sources);
+		if (compilation.isSuccessful()) {
+			try {
+				cache.store(key, compilation);
+			} catch (IOException e) {
+				System.err.println(Utils.indentError("Compiled classes could not be cached:",
+						Utils.getMessageTrace(e)));
+			}
+		}
+		return compilation;
+	}
+
+	/**
+	 * Compile Java sources in single compiler task.
+	 *
+	 * @param sources source files
+	 * @return Compilation result.
+	 * @throws IOException in case sources cannot be read
+	 */
+	private JavaCompilation compileSources (List<File> sources) throws IOException {
+		Context context = this.acquire();
+		boolean reusable = false;
+		try {
+			DiagnosticCollector<JavaFileObject> collector = new DiagnosticCollector<JavaFileObject>();
+			MemoryFileManager fileManager = new MemoryFileManager(context.fileManager);
+			boolean successful = this.compiler.getTask(null, fileManager, collector, OPTIONS, null,
+					context.fileManager.getJavaFileObjectsFromFiles(sources)).call();
+			reusable = true;
+			return new JavaCompilation(successful, fileManager.getClasses(), collector.getDiagnostics());
+		} finally {
+			this.release(context, reusable);
+		}
+	}
+
+	/**
+	 * Borrow idle file manager or create new one.
+	 *
+	 * @return File manager context.
+	 */
+	private Context acquire () {
+		synchronized (this.idleContexts) {
+			Context context = this.idleContexts.pollFirst();
+			if (context != null) {
+				return context;
+			}
+		}
+		return new Context(this.compiler.getStandardFileManager(null, null, null));
+	}
+
+	/**
+	 * Return borrowed file manager to pool, or close it if it was used up.
+	 *
+	 * @param context file manager context
+	 * @param reusable false if compilation failed unexpectedly (file manager may be left in invalid state)
+	 */
+	private void release (Context context, boolean reusable) {
+		if (reusable && (++context.useCount < this.maxUseCount)) {
+			synchronized (this.idleContexts) {
+				this.idleContexts.addFirst(context);
+			}
+			return;
+		}
+		try {
+			context.fileManager.close();
+		} catch (IOException e) {
+			// file manager is discarded anyway
+		}
+	}
+}
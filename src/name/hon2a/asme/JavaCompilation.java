@@ -0,0 +1,159 @@
+package name.hon2a.asme;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import name.hon2a.asm.Utils;
+
+/**
+ * Result of compiling set of Java sources in memory (see CompilerService).
+ *
+ * All sources are compiled by single compiler task (so they can refer to each
+ * other) and compiled classes are kept in memory instead of being written next
+ * to sources. Compiler messages are kept as structured diagnostics.
+ *
+ * @author %hon2a
+ */
+public final class JavaCompilation {
+
+	private static final int TAB_WIDTH = 8; ///< tab width assumed by compiler in diagnostic column numbers
+
+	private final boolean successful; ///< true if all sources were compiled without errors
+	private final Map<String, byte[]> classes; ///< bytecode of compiled classes by their binary names
+	private final List<Diagnostic<? extends JavaFileObject>> diagnostics; ///< compiler errors and warnings
+
+	/**
+	 * Default and only constructor (use CompilerService::compile()).
+	 *
+	 * @param successful true if all sources were compiled without errors
+	 * @param classes bytecode of compiled classes by their binary names
+	 * @param diagnostics compiler errors and warnings
+	 */
+	JavaCompilation (boolean successful, Map<String, byte[]> classes,
+			List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+		this.successful = successful;
+		this.classes = Collections.unmodifiableMap(classes);
+		this.diagnostics = Collections.unmodifiableList(diagnostics);
+	}
+
+	/**
+	 * @return True if all sources were compiled without errors.
+	 */
+	public boolean isSuccessful () {
+		return this.successful;
+	}
+
+	/**
+	 * @return Bytecode of compiled classes by their binary names (unmodifiable).
+	 */
+	public Map<String, byte[]> getClasses () {
+		return this.classes;
+	}
+
+	/**
+	 * @return Compiler errors and warnings in order of their reporting (unmodifiable).
+	 */
+	public List<Diagnostic<? extends JavaFileObject>> getDiagnostics () {
+		return this.diagnostics;
+	}
+
+	/**
+	 * Get compiler diagnostics of given kind.
+	 *
+	 * @param kind kind of diagnostics (e.g. Diagnostic.Kind.ERROR)
+	 * @return Diagnostics of given kind in order of their reporting.
+	 */
+	public List<Diagnostic<? extends JavaFileObject>> getDiagnostics (Diagnostic.Kind kind) {
+		List<Diagnostic<? extends JavaFileObject>> selected = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+		for (Diagnostic<? extends JavaFileObject> diagnostic : this.diagnostics) {
+			if (diagnostic.getKind() == kind) {
+				selected.add(diagnostic);
+			}
+		}
+		return selected;
+	}
+
+	/**
+	 * Format compiler errors in the same way as command-line compiler.
+	 *
+	 * @code
+	 * PATH:LINE: error: MESSAGE
+	 * SOURCE_LINE
+	 *      ^
+	 * ...
+	 * COUNT errors
+	 * @endcode
+	 *
+	 * @return Error messages, one per line.
+	 */
+	public String formatErrors () {
+		List<Diagnostic<? extends JavaFileObject>> errors = this.getDiagnostics(Diagnostic.Kind.ERROR);
+		Map<JavaFileObject, String[]> sourceLines = new HashMap<JavaFileObject, String[]>();
+		StringBuilder text = new StringBuilder();
+		for (Diagnostic<? extends JavaFileObject> error : errors) {
+			if (error.getSource() != null) {
+				text.append(error.getSource().getName())
+					.append(":")
+					.append(error.getLineNumber())
+					.append(": ");
+			}
+			String message = error.getMessage(Locale.ENGLISH);
+			int firstLineEnd = message.indexOf('\n');
+			text.append("error: ")
+				.append((firstLineEnd < 0) ? message : message.substring(0, firstLineEnd))
+				.append(Utils.EOL_STRING);
+			String line = JavaCompilation.getSourceLine(error, sourceLines);
+			if (line != null) {
+				text.append(line).append(Utils.EOL_STRING);
+				if (error.getColumnNumber() > 0) {
+					// column counts tabs as expanded, caret line keeps them so that it lines up with source line
+					long column = 1;
+					for (int i = 0; (column < error.getColumnNumber()) && (i < line.length()); ++i) {
+						boolean tab = (line.charAt(i) == '\t');
+						column = tab ? ((column - 1) / TAB_WIDTH + 1) * TAB_WIDTH + 1 : column + 1;
+						text.append(tab ? '\t' : ' ');
+					}
+					text.append("^").append(Utils.EOL_STRING);
+				}
+			}
+			if (firstLineEnd >= 0) {
+				text.append(message.substring(firstLineEnd + 1)).append(Utils.EOL_STRING);
+			}
+		}
+		return text.append(errors.size())
+			.append((errors.size() == 1) ? " error" : " errors")
+			.toString();
+	}
+
+	/**
+	 * Retrieve source line diagnostic refers to.
+	 *
+	 * @param diagnostic compiler diagnostic
+	 * @param sourceLines lines of sources read so far (by source, updated by this method)
+	 * @return Source line (without line terminator) or null if it is not known.
+	 */
+	private static String getSourceLine (Diagnostic<? extends JavaFileObject> diagnostic,
+			Map<JavaFileObject, String[]> sourceLines) {
+		JavaFileObject source = diagnostic.getSource();
+		long lineNumber = diagnostic.getLineNumber();
+		if ((source == null) || (lineNumber <= 0)) {
+			return null;
+		}
+		String[] lines = sourceLines.get(source);
+		if (lines == null) {
+			try {
+				lines = source.getCharContent(true).toString().split("\r\n|\r|\n", -1);
+			} catch (IOException e) {
+				lines = new String[0];
+			}
+			sourceLines.put(source, lines);
+		}
+		return (lineNumber <= lines.length) ? lines[(int) lineNumber - 1] : null;
+	}
+}
@@ -1,21 +1,31 @@
 package name.hon2a.asme;
 
-import java.io.ByteArrayOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FilenameFilter;
-import java.io.OutputStream;
-import java.io.PrintWriter;
+import java.io.IOException;
 import java.lang.reflect.Method;
-import java.net.URL;
-import java.net.URLClassLoader;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
 import name.hon2a.asm.Test;
 import name.hon2a.asm.TestException;
 import name.hon2a.asm.Utils;
-
-import javax.tools.JavaCompiler;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 /**
  * Abstract test providing support for compiling and running external java sources.
@@ -24,6 +34,10 @@ import javax.tools.JavaCompiler;
  */
 public abstract class JavaTest extends Test {
 
+	private final Map<String, byte[]> compiledClasses = new HashMap<String, byte[]>(); ///< bytecode of compiled classes by binary names
+	/// errors and warnings reported by compiler
+	private final List<Diagnostic<? extends JavaFileObject>> compilerDiagnostics = new ArrayList<Diagnostic<? extends JavaFileObject>>();
+
 	public JavaTest (Map<String, String> sources, Map<String, String> params, File outputFolder) {
 		super(sources, params, outputFolder);
 	}
@@ -43,39 +57,48 @@ public abstract class JavaTest extends Test {
 	/**
 	 * Compile Java source file.
 	 *
+	 * Compiled classes are kept in memory (see JavaTest::loadJavaSource()).
+	 *
 	 * @param source source file descriptor
 	 * @throws TestException in case source cannot be compiled
 	 */
 	protected final void compileJavaSource (File source) throws TestException {
-		final String[] javacArguments = new String[] { source.getAbsolutePath() };
-		OutputStream errorStream = new ByteArrayOutputStream();
-		final PrintWriter pw = new PrintWriter(errorStream);
-
-    //    javax.tovols.JavaCompiler jc = javax.tools.ToolProvider.getSystemJavaCompiler();
-   //     int errorCode = jc.run(null, null, errorStream, source.getAbsolutePath());
-		int errorCode = com.sun.tools.javac.Main.compile(javacArguments, pw);
-
-        pw.flush();
-        pw.close();
-		if (errorCode != 0) {
-			this.triggerError("Source cannot be compiled (error code " + errorCode + ", " + errorStream.toString() + ")", ErrorType.DATA_ERROR);
-		}
+		List<File> sources = new ArrayList<File>();
+		sources.add(source);
+		this.compileJavaFiles(sources);
 	}
 
 	/**
 	 * Compile all Java sources in given folder and subfolders (recursive).
 	 *
+	 * All sources are compiled together by single compiler task and compiled
+	 * classes are kept in memory (see JavaTest::loadJavaSource()).
+	 *
 	 * @param sourcePath file descriptor of base folder
 	 * @throws TestException in case some source file cannot be compiled
 	 */
 	protected final void compileJavaSources (File sourcePath) throws TestException {
+		List<File> sources = new ArrayList<File>();
+		JavaTest.findJavaSources(sourcePath, sources);
+		if (!sources.isEmpty()) {
+			this.compileJavaFiles(sources);
+		}
+	}
+
+	/**
+	 * Find all Java sources in given folder and subfolders (recursive).
+	 *
+	 * @param sourcePath file descriptor of base folder
+	 * @param sources list to add found source files to
+	 */
+	private static void findJavaSources (File sourcePath, List<File> sources) {
 		File[] subFolders = sourcePath.listFiles(new FileFilter() {
 			public boolean accept(File file) {
 				return file.isDirectory();
 			}
 		});
 		for (File subFolder : subFolders) {
-			this.compileJavaSources(subFolder);
+			JavaTest.findJavaSources(subFolder, sources);
 		}
 
 		File[] sourceFiles = sourcePath.listFiles(new FilenameFilter() {
@@ -83,15 +106,88 @@ public abstract class JavaTest extends Test {
 				return name.endsWith(".java");
 			}
 		});
-		for (File sourceFile : sourceFiles) {
-			this.compileJavaSource(sourceFile);
+		sources.addAll(Arrays.asList(sourceFiles));
+	}
+
+	/**
+	 * Compile Java sources in single compiler task and keep compiled classes.
+	 *
+	 * @param sources source files
+	 * @throws TestException in case some source file cannot be compiled
+	 */
+	private void compileJavaFiles (List<File> sources) throws TestException {
+		JavaCompilation compilation;
+		try {
+			compilation = CompilerService.getInstance().compile(sources);
+		} catch (IOException e) {
+			this.triggerError("Java compiler cannot be run", e);
+			return;
+		}
+		this.compilerDiagnostics.addAll(compilation.getDiagnostics());
+		if (!compilation.isSuccessful()) {
+			this.triggerError(Utils.indentError("Source cannot be compiled", compilation.formatErrors()),
+					ErrorType.DATA_ERROR);
+		}
+		this.compiledClasses.putAll(compilation.getClasses());
+	}
+
+	/**
+	 * Getter for JavaTest::compilerDiagnostics.
+	 *
+	 * @return Errors and warnings reported by compiler so far (unmodifiable).
+	 */
+	protected final List<Diagnostic<? extends JavaFileObject>> getCompilerDiagnostics () {
+		return Collections.unmodifiableList(this.compilerDiagnostics);
+	}
+
+	/**
+	 * Create class loader for classes compiled by this test.
+	 *
+	 * @param classPath base classpath for classes that were not compiled by this test
+	 * @return New class loader.
+	 * @throws MalformedURLException in case class path cannot be converted to URL
+	 */
+	private ClassLoader createClassLoader (File classPath) throws MalformedURLException {
+		return new MemoryClassLoader(this.compiledClasses, classPath, JavaTest.class.getClassLoader());
+	}
+
+	/**
+	 * Check whether student code should run in worker JVM (see WorkerPool).
+	 *
+	 * @return True if @c isolation option is @c worker (see Test::getOption()).
+	 */
+	private boolean isIsolated () {
+		return this.getOption("isolation", "none").equals("worker");
+	}
+
+	/**
+	 * Retrieve budget of student code (see Watchdog).
+	 *
+	 * @param name option name (@c cpuBudget in milliseconds or @c allocationBudget in bytes)
+	 * @return Budget (0 if it is not set or invalid, which means unlimited).
+	 */
+	private long getBudget (String name) {
+		try {
+			return Math.max(0, Long.parseLong(this.getOption(name, "0").trim()));
+		} catch (NumberFormatException e) {
+			return 0;
 		}
 	}
 
+	/**
+	 * Load external class compiled from source and create its instance.
+	 *
+	 * Classes compiled by JavaTest::compileJavaSources() are loaded from memory,
+	 * other classes from given class path.
+	 *
+	 * @param classPath base classpath for class loading
+	 * @param className name of class to be loaded
+	 * @return New instance of loaded class.
+	 * @throws TestException in case class cannot be loaded or instantiated
+	 */
 	protected final Object loadJavaSource (File classPath, String className) throws TestException {
 		try {
-			URLClassLoader loader = URLClassLoader.newInstance(new URL[] { classPath.toURI().toURL() });
-			return loader.loadClass(className).newInstance();
+			return this.createClassLoader(classPath).loadClass(className).getDeclaredConstructor().newInstance();
 		} catch (Exception e) {
 			this.triggerError(Utils.indentError("Cannot load external Java class",
 					  Utils.getMessageTrace(e, true)), ErrorType.DATA_ERROR);
@@ -102,7 +198,9 @@ public abstract class JavaTest extends Test {
 	/**
 	 * Run external class from previously compiled source.
 	 *
-	 * Class needs to be compiled.
+	 * Class needs to be compiled. Invoked method runs within CPU time and
+	 * allocation budget set by @c cpuBudget and @c allocationBudget options
+	 * (see Watchdog).
 	 *
 	 * @param classPath base classpath for class loading
 	 * @param className name of class to be loaded
@@ -115,16 +213,232 @@ public abstract class JavaTest extends Test {
 	protected final Object runJavaSource (File classPath, String className,
 			  String methodName, Map<Class, Object> args)
 			throws TestException {
+		if (this.isIsolated()) {
+			return this.runJavaSourceInWorker(classPath, className, methodName, args);
+		}
+		try {
+			final Class<?> userClass = this.createClassLoader(classPath).loadClass(className);
+			final Method userMethod = userClass.getMethod(methodName, args.keySet().toArray(new Class[] {}));
+			final Object[] values = args.values().toArray(new Object[] {});
+			return Watchdog.getInstance().call(new Callable<Object>() {
+				public Object call () throws Exception {
+					return userMethod.invoke(userClass.getDeclaredConstructor().newInstance(), values);
+				}
+			}, this.getBudget("cpuBudget"), this.getBudget("allocationBudget"));
+		} catch (Watchdog.BudgetExceededException e) {
+			this.markUncacheable();
+			this.triggerError(e.getMessage(), ErrorType.DATA_ERROR);
+			return null;
+		} catch (Exception e) {
+			this.triggerError(Utils.indentError("Error while running external Java script",
+					  Utils.getMessageTrace(e, true)), ErrorType.DATA_ERROR);
+			return null;
+		}
+	}
+
+	/**
+	 * Run external class from previously compiled source in worker JVM (see WorkerPool).
+	 *
+	 * Output of external class is written to standard streams of current thread.
+	 * Changes of XML document arguments are copied back to original documents.
+	 *
+	 * @param classPath base classpath for class loading
+	 * @param className name of class to be loaded
+	 * @param methodName name of method to be invoked
+	 * @param args arguments passed to run script (XML documents, strings or primitive values)
+	 * @return Result of invoked method (null if it is not string or primitive value).
+	 * @throws TestException in case script cannot be loaded or throws an exception
+	 * @see JavaTest::runJavaSource(File, String, String, Map<Class, Object>)
+	 */
+	private Object runJavaSourceInWorker (File classPath, String className, String methodName,
+			Map<Class, Object> args) throws TestException {
+		Map<Class<?>, Object> workerArgs = new LinkedHashMap<Class<?>, Object>();
+		for (Map.Entry<Class, Object> arg : args.entrySet()) {
+			workerArgs.put(arg.getKey(), arg.getValue());
+		}
+		WorkerPool.Reply reply = null;
 		try {
-			URLClassLoader loader = URLClassLoader.newInstance(new URL[] { classPath.toURI().toURL() });
-			Class userClass = loader.loadClass(className);
-			Method userMethod = userClass.getMethod(methodName, args.keySet().toArray(new Class[] {}));
-			return userMethod.invoke(userClass.newInstance(), args.values().toArray(new Object[] {}));
+			reply = WorkerPool.getInstance().invoke(this.compiledClasses, classPath, className,
+					this.getBudget("cpuBudget"), this.getBudget("allocationBudget"), methodName, workerArgs);
 		} catch (Exception e) {
+			// worker crashed or could not be started
+			this.markUncacheable();
 			this.triggerError(Utils.indentError("Error while running external Java script",
 					  Utils.getMessageTrace(e, true)), ErrorType.DATA_ERROR);
 			return null;
 		}
+		JavaTest.writeOutput(reply);
+		if (reply.status == WorkerProcess.BUDGET_ERROR) {
+			this.markUncacheable();
+			this.triggerError(reply.message, ErrorType.DATA_ERROR);
+			return null;
+		}
+		if (reply.status != WorkerProcess.OK) {
+			this.triggerError(Utils.indentError("Error while running external Java script", reply.message),
+					ErrorType.DATA_ERROR);
+			return null;
+		}
+		int documentIndex = 0;
+		for (Object arg : args.values()) {
+			if (arg instanceof Document) {
+				JavaTest.replaceContents((Document) arg, reply.documents.get(documentIndex++));
+			}
+		}
+		return reply.result;
+	}
+
+	/**
+	 * Parse XML document using external handler class from previously compiled source.
+	 *
+	 * Document is parsed by namespace-aware, non-validating SAX parser. Handler
+	 * class needs to extend org.xml.sax.helpers.DefaultHandler. Parsing runs
+	 * within CPU time and allocation budget (see JavaTest::runJavaSource()).
+	 *
+	 * @param classPath base classpath for class loading
+	 * @param className name of handler class
+	 * @param xml XML document
+	 * @param systemId system ID of document (used to resolve relative URIs)
+	 * @throws TestException in case handler cannot be loaded or document cannot be parsed
+	 * @see JavaTest::compileJavaSources()
+	 */
+	protected final void parseXmlUsingJavaSource (File classPath, String className, byte[] xml, final String systemId)
+			throws TestException {
+		if (this.isIsolated()) {
+			this.parseXmlUsingJavaSourceInWorker(classPath, className, xml, systemId);
+			return;
+		}
+
+		Object obj = this.loadJavaSource(classPath, className);
+		if (obj == null) {
+			return;
+		}
+		if (!(obj instanceof DefaultHandler)) {
+			this.triggerError("User handler does not extend org.xml.sax.helpers.DefaultHandler.", ErrorType.DATA_ERROR,
+					new ClassCastException(obj.getClass().getName()));
+			return;
+		}
+
+		SAXParser saxParser;
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setValidating(false);
+		factory.setNamespaceAware(true);
+		try {
+			saxParser = factory.newSAXParser();
+		} catch (Exception e) {
+			this.triggerError("Cannot create SAX parser", ErrorType.CODE_ERROR, e);
+			return;
+		}
+
+		final SAXParser parser = saxParser;
+		final DefaultHandler handler = (DefaultHandler) obj;
+		final ByteArrayInputStream input = new ByteArrayInputStream(xml);
+		try {
+			Watchdog.getInstance().call(new Callable<Object>() {
+				public Object call () throws Exception {
+					parser.parse(input, handler, systemId);
+					return null;
+				}
+			}, this.getBudget("cpuBudget"), this.getBudget("allocationBudget"));
+		} catch (Watchdog.BudgetExceededException e) {
+			this.markUncacheable();
+			this.triggerError(e.getMessage(), ErrorType.DATA_ERROR);
+		} catch (SAXException e) {
+			this.triggerError("Cannot parse xml using supplied handler", ErrorType.DATA_ERROR, e);
+		} catch (IOException e) {
+			this.triggerError("Error while reading input", ErrorType.CODE_ERROR, e);
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			this.triggerError("Cannot parse xml using supplied handler", ErrorType.DATA_ERROR, e);
+		}
+	}
+
+	/**
+	 * Parse XML document using external handler class in worker JVM (see WorkerPool).
+	 *
+	 * @param classPath base classpath for class loading
+	 * @param className name of handler class
+	 * @param xml XML document
+	 * @param systemId system ID of document
+	 * @throws TestException in case handler cannot be loaded or document cannot be parsed
+	 * @see JavaTest::parseXmlUsingJavaSource()
+	 */
+	private void parseXmlUsingJavaSourceInWorker (File classPath, String className, byte[] xml, String systemId)
+			throws TestException {
+		WorkerPool.Reply reply;
+		try {
+			reply = WorkerPool.getInstance().parse(this.compiledClasses, classPath, className,
+					this.getBudget("cpuBudget"), this.getBudget("allocationBudget"), xml, systemId);
+		} catch (Exception e) {
+			// worker crashed or could not be started
+			this.markUncacheable();
+			this.triggerError(Utils.indentError("Error while running external Java script",
+					  Utils.getMessageTrace(e, true)), ErrorType.DATA_ERROR);
+			return;
+		}
+		JavaTest.writeOutput(reply);
+		switch (reply.status) {
+			case WorkerProcess.LOAD_ERROR:
+				this.triggerError(Utils.indentError("Cannot load external Java class", reply.message),
+						ErrorType.DATA_ERROR);
+				break;
+			case WorkerProcess.TYPE_ERROR:
+				this.triggerError(Utils.indentError("User handler does not extend org.xml.sax.helpers.DefaultHandler.",
+						reply.message), ErrorType.DATA_ERROR);
+				break;
+			case WorkerProcess.PARSE_ERROR:
+				this.triggerError(Utils.indentError("Cannot parse xml using supplied handler", reply.message),
+						ErrorType.DATA_ERROR);
+				break;
+			case WorkerProcess.INPUT_ERROR:
+				this.triggerError(Utils.indentError("Error while reading input", reply.message),
+						ErrorType.CODE_ERROR);
+				break;
+			case WorkerProcess.BUDGET_ERROR:
+				this.markUncacheable();
+				this.triggerError(reply.message, ErrorType.DATA_ERROR);
+				break;
+			case WorkerProcess.RUN_ERROR:
+				this.triggerError(Utils.indentError("Error while running external Java script", reply.message),
+						ErrorType.DATA_ERROR);
+				break;
+		}
+	}
+
+	/**
+	 * Write output of external class captured by worker to standard streams.
+	 *
+	 * @param reply worker reply
+	 */
+	private static void writeOutput (WorkerPool.Reply reply) {
+		System.out.write(reply.stdout, 0, reply.stdout.length);
+		System.out.flush();
+		System.err.write(reply.stderr, 0, reply.stderr.length);
+		System.err.flush();
+	}
+
+	/**
+	 * Replace contents of XML document by contents of another document.
+	 *
+	 * Document type declaration of target document is kept.
+	 *
+	 * @param target document to be modified
+	 * @param source document with new contents
+	 */
+	private static void replaceContents (Document target, Document source) {
+		Node child = target.getFirstChild();
+		while (child != null) {
+			Node next = child.getNextSibling();
+			if (child.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+				target.removeChild(child);
+			}
+			child = next;
+		}
+		for (child = source.getFirstChild(); child != null; child = child.getNextSibling()) {
+			if (child.getNodeType() != Node.DOCUMENT_TYPE_NODE) {
+				target.appendChild(target.importNode(child, true));
+			}
+		}
 	}
 
 	/**
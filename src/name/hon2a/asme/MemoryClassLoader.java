@@ -0,0 +1,50 @@
+package name.hon2a.asme;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+
+/**
+ * Class loader defining classes from bytecode kept in memory.
+ *
+ * Classes not found in memory (and resources) are loaded from class path
+ * folder, as if it was used by plain java.net.URLClassLoader.
+ *
+ * @author %hon2a
+ */
+final class MemoryClassLoader extends URLClassLoader {
+
+	private final Map<String, byte[]> classes; ///< bytecode of classes by their binary names
+
+	/**
+	 * Default and only constructor.
+	 *
+	 * @param classes bytecode of classes by their binary names
+	 * @param classPath class path folder for classes and resources not found in memory
+	 * @param parent parent class loader
+	 * @throws MalformedURLException in case class path cannot be converted to URL
+	 */
+	MemoryClassLoader (Map<String, byte[]> classes, File classPath, ClassLoader parent)
+			throws MalformedURLException {
+		super(new URL[] { classPath.toURI().toURL() }, parent);
+		this.classes = classes;
+	}
+
+	/**
+	 * Define class from bytecode in memory, or find it in class path folder.
+	 *
+	 * @param name binary name of class
+	 * @return Loaded class.
+	 * @throws ClassNotFoundException in case class cannot be found
+	 */
+	@Override
+	protected Class<?> findClass (String name) throws ClassNotFoundException {
+		byte[] bytecode = this.classes.get(name);
+		if (bytecode == null) {
+			return super.findClass(name);
+		}
+		return this.defineClass(name, bytecode, 0, bytecode.length);
+	}
+}
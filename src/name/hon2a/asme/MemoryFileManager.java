@@ -0,0 +1,115 @@
+package name.hon2a.asme;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * Java file manager keeping compiled classes in memory.
+ *
+ * Source files and referenced libraries are read through underlying file
+ * manager, but class files produced by compiler are not written anywhere.
+ * Instead, their bytecode is collected and can be loaded by MemoryClassLoader.
+ *
+ * @author %hon2a
+ */
+final class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+
+	/**
+	 * Class file written to memory.
+	 */
+	private final class ClassOutput extends SimpleJavaFileObject {
+
+		private final String className; ///< binary name of class
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param className binary name of class
+		 */
+		private ClassOutput (String className) {
+			super(URI.create("memory:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+			this.className = className;
+		}
+
+		/**
+		 * Open stream storing class bytecode once closed.
+		 *
+		 * @return Output stream for class file contents.
+		 */
+		@Override
+		public OutputStream openOutputStream () {
+			return new ByteArrayOutputStream() {
+				@Override
+				public void close () throws IOException {
+					super.close();
+					synchronized (MemoryFileManager.this.classes) {
+						MemoryFileManager.this.classes.put(ClassOutput.this.className, this.toByteArray());
+					}
+				}
+			};
+		}
+	}
+
+	private final Map<String, byte[]> classes = new TreeMap<String, byte[]>(); ///< bytecode of compiled classes by binary names
+
+	/**
+	 * Default and only constructor.
+	 *
+	 * @param fileManager underlying file manager (used for everything except class output)
+	 */
+	MemoryFileManager (JavaFileManager fileManager) {
+		super(fileManager);
+	}
+
+	/**
+	 * Create in-memory class file for compiler output.
+	 *
+	 * Non-class output (e.g. source files generated by annotation processors) is
+	 * handled by underlying file manager.
+	 *
+	 * @param location output location
+	 * @param className binary name of class
+	 * @param kind kind of output file
+	 * @param sibling source file the output is generated from
+	 * @return Output file object.
+	 * @throws IOException in case underlying file manager fails
+	 */
+	@Override
+	public JavaFileObject getJavaFileForOutput (Location location, String className, JavaFileObject.Kind kind,
+			FileObject sibling) throws IOException {
+		if (kind != JavaFileObject.Kind.CLASS) {
+			return super.getJavaFileForOutput(location, className, kind, sibling);
+		}
+		return new ClassOutput(className);
+	}
+
+	/**
+	 * Release this file manager.
+	 *
+	 * Underlying file manager may be shared by several compilations and is not
+	 * closed (it is closed by its owner, see CompilerService).
+	 */
+	@Override
+	public void close () {
+	}
+
+	/**
+	 * Get classes compiled so far.
+	 *
+	 * @return Copy of map with bytecode of compiled classes by their binary names.
+	 */
+	Map<String, byte[]> getClasses () {
+		synchronized (this.classes) {
+			return new TreeMap<String, byte[]>(this.classes);
+		}
+	}
+}
@@ -0,0 +1,428 @@
+package name.hon2a.asme;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * Watchdog enforcing CPU time and allocation budget of student code.
+ *
+ * Student code runs on shared scheduler threads (see name.hon2a.asm.Scheduler),
+ * so single submission stuck in endless loop or allocating without end would
+ * hold scheduler thread (and heap) until test timeout, delaying all other tests.
+ * Code run by Watchdog::call() is watched by background thread, which samples
+ * CPU time and allocated bytes of calling thread (using ThreadMXBean) every
+ * few milliseconds. Once either of them exceeds its budget, Watchdog::call()
+ * throws Watchdog::BudgetExceededException when watched code returns:
+ * @code
+ * try {
+ *		Watchdog.getInstance().call(new Callable<Object>() {
+ *			public Object call () throws Exception {
+ *				return userMethod.invoke(userObject);
+ *			}
+ *		}, 2000, 256L * 1024 * 1024);
+ * } catch (Watchdog.BudgetExceededException e) {
+ *		// "Execution exceeded budget of 2s CPU / 256MB allocated (used 2.01s CPU)"
+ * }
+ * @endcode
+ *
+ * Budgets are passed by caller for every run (JavaTest takes them from
+ * @c cpuBudget and @c allocationBudget options, which are not set by default);
+ * zero disables the budget. Only calling thread is watched, not threads started
+ * by student code. Allocation budget limits all bytes allocated during the run
+ * (not just bytes still in use) and is only enforced if JVM supports measuring
+ * of allocated bytes.
+ *
+ * Watched thread that exceeds its budget is interrupted. Stopping thread by
+ * Thread::stop() may leave objects shared with other threads in inconsistent
+ * state, so it is only used in worker JVMs (see WorkerPool and
+ * Watchdog::allowStop()), which run nothing but single piece of student code.
+ * Both are issued again on every sample until watched code returns, because
+ * student code may catch them and go on. Student code ignoring interruption in
+ * grader JVM runs on until test times out (see name.hon2a.asm.TesterPlugin).
+ *
+ * @author %hon2a
+ */
+public final class Watchdog {
+
+	private static final long SAMPLE_INTERVAL = 10; ///< interval of sampling watched threads (in milliseconds)
+	private static final long STOP_DELIVERY_TIMEOUT = 1000; ///< maximum wait for stopped thread to notice it (in milliseconds)
+
+	/**
+	 * Exception thrown by Watchdog::call() when watched code exceeds its budget.
+	 */
+	public static final class BudgetExceededException extends Exception {
+
+		private static final long serialVersionUID = 1L; ///< serialization version
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param message description of exceeded budget
+		 */
+		private BudgetExceededException (String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Watched run of code in single thread.
+	 */
+	private final class Guard {
+
+		private final Thread thread; ///< watched thread
+		private final long cpuBudget; ///< CPU time budget (in nanoseconds, 0 if unlimited)
+		private final long allocationBudget; ///< allocation budget (in bytes, 0 if unlimited)
+		private final long startCpuTime; ///< CPU time of thread when run started (in nanoseconds)
+		private final long startAllocatedBytes; ///< bytes allocated by thread before run started
+		private boolean active = true; ///< false once run has ended
+		private int stopCount = 0; ///< number of stops issued to thread
+		private String violation = null; ///< description of exceeded budget (null if budget has not been exceeded)
+
+		/**
+		 * Start watching current thread.
+		 *
+		 * @param cpuBudget CPU time budget (in nanoseconds, 0 if unlimited)
+		 * @param allocationBudget allocation budget (in bytes, 0 if unlimited)
+		 */
+		private Guard (long cpuBudget, long allocationBudget) {
+			this.thread = Thread.currentThread();
+			this.cpuBudget = cpuBudget;
+			this.allocationBudget = allocationBudget;
+			this.startCpuTime = this.getCpuTime();
+			this.startAllocatedBytes = this.getAllocatedBytes();
+		}
+
+		/**
+		 * Check consumption of watched thread and stop it if it exceeds budget (called by watchdog thread).
+		 *
+		 * @return False if run has ended (guard can be dropped), true otherwise.
+		 */
+		private synchronized boolean check () {
+			if (!this.active) {
+				return false;
+			}
+			if (this.violation == null) {
+				long cpuTime = this.getCpuTime() - this.startCpuTime;
+				long allocatedBytes = this.getAllocatedBytes() - this.startAllocatedBytes;
+				if ((this.cpuBudget > 0) && (cpuTime > this.cpuBudget)) {
+					this.violation = this.describeViolation("used " + formatTime(cpuTime) + " CPU");
+				} else if ((this.allocationBudget > 0) && (allocatedBytes > this.allocationBudget)) {
+					this.violation = this.describeViolation("allocated " + formatBytes(allocatedBytes));
+				} else {
+					return true;
+				}
+			}
+			if (Watchdog.this.stopAllowed) {
+				try {
+					this.stopThread();
+					++this.stopCount;
+					return true;
+				} catch (UnsupportedOperationException e) {
+					// interrupt instead
+				}
+			}
+			this.thread.interrupt();
+			return true;
+		}
+
+		/**
+		 * Stop watched thread.
+		 */
+		@SuppressWarnings("deprecation")
+		private void stopThread () {
+			this.thread.stop();
+		}
+
+		/**
+		 * Stop watching (called by watched thread once run has ended).
+		 *
+		 * Guard is dropped by watchdog thread afterwards. If thread has been
+		 * stopped, but has not noticed it yet, waits until ThreadDeath is
+		 * delivered, so that it cannot surface after run has ended. If stop has
+		 * been issued again after the one thread has noticed, it is given a moment
+		 * to arrive as well (pending stop is delivered as soon as the thread blocks).
+		 *
+		 * @param stopDelivered true if watched thread has already caught ThreadDeath
+		 */
+		private void finish (boolean stopDelivered) {
+			long stopWait = 0;
+			synchronized (this) {
+				this.active = false;
+				if ((this.stopCount > 0) && !stopDelivered) {
+					stopWait = STOP_DELIVERY_TIMEOUT;
+				} else if (this.stopCount > 1) {
+					stopWait = SAMPLE_INTERVAL;
+				}
+			}
+			if (stopWait > 0) {
+				try {
+					Thread.sleep(stopWait);
+				} catch (InterruptedException e) {
+					// ThreadDeath is delivered instead
+				}
+			}
+		}
+
+		/**
+		 * Getter for Guard::violation.
+		 *
+		 * @return Description of exceeded budget, or null if budget has not been exceeded.
+		 */
+		private synchronized String getViolation () {
+			return this.violation;
+		}
+
+		/**
+		 * Get CPU time of watched thread.
+		 *
+		 * @return CPU time in nanoseconds (0 if it is not watched).
+		 */
+		private long getCpuTime () {
+			return (this.cpuBudget > 0)
+					? Math.max(0, Watchdog.this.threadBean.getThreadCpuTime(this.thread.getId()))
+					: 0;
+		}
+
+		/**
+		 * Get number of bytes allocated by watched thread since it started.
+		 *
+		 * @return Allocated bytes (0 if they are not watched).
+		 */
+		private long getAllocatedBytes () {
+			return (this.allocationBudget > 0)
+					? Math.max(0, Watchdog.this.allocationBean.getThreadAllocatedBytes(this.thread.getId()))
+					: 0;
+		}
+
+		/**
+		 * Create description of exceeded budget.
+		 *
+		 * @param usage description of consumption that exceeded budget
+		 * @return Error message.
+		 */
+		private String describeViolation (String usage) {
+			List<String> budgets = new ArrayList<String>();
+			if (this.cpuBudget > 0) {
+				budgets.add(formatTime(this.cpuBudget) + " CPU");
+			}
+			if (this.allocationBudget > 0) {
+				budgets.add(formatBytes(this.allocationBudget) + " allocated");
+			}
+			StringBuilder message = new StringBuilder("Execution exceeded budget of ");
+			for (int i = 0; i < budgets.size(); ++i) {
+				message.append((i > 0) ? " / " : "").append(budgets.get(i));
+			}
+			return message.append(" (").append(usage).append(")").toString();
+		}
+	}
+
+	private static Watchdog instance = null; ///< sole instance
+
+	private final ThreadMXBean threadBean; ///< source of thread CPU time
+	private final boolean cpuSupported; ///< true if JVM measures CPU time of threads
+	private final com.sun.management.ThreadMXBean allocationBean; ///< source of allocated bytes (null if unsupported)
+	private final Set<Guard> guards = new HashSet<Guard>(); ///< runs being watched
+	private Thread watcher = null; ///< background thread sampling watched threads (null until first run)
+	private volatile boolean stopAllowed = false; ///< true if watched threads may be stopped (see Watchdog::allowStop())
+
+	/**
+	 * Private constructor (use Watchdog::getInstance()).
+	 */
+	private Watchdog () {
+		this.threadBean = ManagementFactory.getThreadMXBean();
+		this.cpuSupported = this.threadBean.isThreadCpuTimeSupported();
+		if (this.cpuSupported && !this.threadBean.isThreadCpuTimeEnabled()) {
+			this.threadBean.setThreadCpuTimeEnabled(true);
+		}
+
+		com.sun.management.ThreadMXBean allocationBean = null;
+		if (this.threadBean instanceof com.sun.management.ThreadMXBean) {
+			allocationBean = (com.sun.management.ThreadMXBean) this.threadBean;
+			try {
+				if (allocationBean.isThreadAllocatedMemorySupported()
+						&& !allocationBean.isThreadAllocatedMemoryEnabled()) {
+					allocationBean.setThreadAllocatedMemoryEnabled(true);
+				}
+			} catch (UnsupportedOperationException e) {
+				allocationBean = null;
+			}
+			if ((allocationBean != null) && !allocationBean.isThreadAllocatedMemorySupported()) {
+				allocationBean = null;
+			}
+		}
+		this.allocationBean = allocationBean;
+	}
+
+	/**
+	 * Retrieve sole watchdog instance.
+	 *
+	 * @return Watchdog.
+	 */
+	public static synchronized Watchdog getInstance () {
+		if (instance == null) {
+			instance = new Watchdog();
+		}
+		return instance;
+	}
+
+	/**
+	 * Allow stopping of watched threads by Thread::stop().
+	 *
+	 * Called by WorkerProcess, where nothing but student code can be affected
+	 * by stopped thread.
+	 */
+	void allowStop () {
+		this.stopAllowed = true;
+	}
+
+	/**
+	 * Run code in current thread within CPU time and allocation budget.
+	 *
+	 * @param task code to run
+	 * @param cpuBudget CPU time budget in milliseconds (0 if unlimited)
+	 * @param allocationBudget allocation budget in bytes (0 if unlimited)
+	 * @return Result of task.
+	 * @throws BudgetExceededException in case task exceeds its budget
+	 * @throws Exception in case task fails
+	 */
+	public <T> T call (Callable<T> task, long cpuBudget, long allocationBudget)
+			throws BudgetExceededException, Exception {
+		long cpuNanos = this.cpuSupported ? Math.max(0, cpuBudget) * 1000000 : 0;
+		long allocatedBytes = (this.allocationBean != null) ? Math.max(0, allocationBudget) : 0;
+		if ((cpuNanos == 0) && (allocatedBytes == 0)) {
+			return task.call();
+		}
+		Guard guard = new Guard(cpuNanos, allocatedBytes);
+		this.register(guard);
+		T result = null;
+		Throwable failure = null;
+		try {
+			result = task.call();
+		} catch (Throwable e) {
+			failure = e;
+		}
+		try {
+			guard.finish(Watchdog.causedByThreadDeath(failure));
+		} catch (ThreadDeath e) {
+			// late delivery of stop issued by watchdog
+		}
+
+		if (guard.getViolation() != null) {
+			// interruption issued by watchdog must not affect caller
+			Thread.interrupted();
+			throw new BudgetExceededException(guard.getViolation());
+		}
+		if (failure instanceof Exception) {
+			throw (Exception) failure;
+		}
+		if (failure instanceof java.lang.Error) {
+			throw (java.lang.Error) failure;
+		}
+		return result;
+	}
+
+	/**
+	 * Check whether failure was caused by stopping of thread (possibly wrapped by reflection or parser).
+	 *
+	 * @param failure failure of task (may be null)
+	 * @return True if failure or some of its causes is ThreadDeath.
+	 */
+	private static boolean causedByThreadDeath (Throwable failure) {
+		for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+			if (cause instanceof ThreadDeath) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Start watching run (starting watchdog thread on first call).
+	 *
+	 * @param guard watched run
+	 */
+	private void register (Guard guard) {
+		synchronized (this.guards) {
+			this.guards.add(guard);
+			if (this.watcher == null) {
+				this.watcher = new Thread(new Runnable() {
+					public void run() {
+						Watchdog.this.watch();
+					}
+				}, "asm-watchdog");
+				this.watcher.setDaemon(true);
+				this.watcher.start();
+			}
+			this.guards.notifyAll();
+		}
+	}
+
+	/**
+	 * Sample watched threads periodically and drop finished runs (run by watchdog thread).
+	 *
+	 * Finished runs are dropped here rather than by watched threads, so that
+	 * stop delivered late to watched thread cannot leave its run registered.
+	 */
+	private void watch () {
+		try {
+			while (true) {
+				synchronized (this.guards) {
+					while (this.guards.isEmpty()) {
+						this.guards.wait();
+					}
+				}
+				Thread.sleep(SAMPLE_INTERVAL);
+				List<Guard> watched;
+				synchronized (this.guards) {
+					watched = new ArrayList<Guard>(this.guards);
+				}
+				List<Guard> finished = new ArrayList<Guard>();
+				for (Guard guard : watched) {
+					if (!guard.check()) {
+						finished.add(guard);
+					}
+				}
+				synchronized (this.guards) {
+					this.guards.removeAll(finished);
+				}
+			}
+		} catch (InterruptedException e) {
+			// watchdog thread is daemon, it is never interrupted by framework
+		}
+	}
+
+	/**
+	 * Format time for error message.
+	 *
+	 * @param nanos time in nanoseconds
+	 * @return Time in seconds (e.g. "2s" or "2.01s").
+	 */
+	private static String formatTime (long nanos) {
+		if (nanos % 1000000000 == 0) {
+			return (nanos / 1000000000) + "s";
+		}
+		return String.format(Locale.ROOT, "%.2fs", nanos / 1e9);
+	}
+
+	/**
+	 * Format number of bytes for error message.
+	 *
+	 * @param bytes number of bytes
+	 * @return Number of bytes in largest unit that fits (e.g. "256MB" or "300KB").
+	 */
+	private static String formatBytes (long bytes) {
+		String[] units = { "B", "KB", "MB", "GB" };
+		int unit = 0;
+		while ((unit < units.length - 1) && (bytes >= 1024 * 10)) {
+			bytes /= 1024;
+			++unit;
+		}
+		return bytes + units[unit];
+	}
+}
@@ -0,0 +1,366 @@
+package name.hon2a.asme;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import name.hon2a.asm.Utils;
+import org.w3c.dom.Document;
+
+/**
+ * Pool of pre-started worker JVMs executing student code (see WorkerProcess).
+ *
+ * Student code running inside grader JVM can take whole grader down (e.g. by
+ * running out of memory, calling System::exit() or starting threads that never
+ * end). When isolation is enabled (@c isolation option set to @c worker ,
+ * see name.hon2a.asm.Test::getOption()), JavaTest runs student code in worker
+ * JVM instead. Worker is used for single run only and terminated afterwards,
+ * whether the run succeeded or not, so that nothing leaks from one run to
+ * another.
+ *
+ * Starting JVM and loading XML stack takes longer than most runs, so workers
+ * are started in advance by background thread. Pool keeps @c asm.workerPoolSize
+ * workers ready (2 by default). Worker JVMs are started with the same class path
+ * and @c asm.* settings as grader and with options from @c asm.workerOptions setting (@c -Xmx256m by default).
+ *
+ * Worker that is no longer needed is killed forcibly where the runtime supports
+ * it (see WorkerPool::terminate()), because student code may ignore polite
+ * termination (e.g. by registering shutdown hook that never ends).
+ *
+ * @author %hon2a
+ */
+public final class WorkerPool {
+
+	private static final String JAVA_BINARY = "java"; ///< name of Java launcher in JRE bin folder
+	/// Process::destroyForcibly() (null if the runtime does not provide it)
+	private static final Method DESTROY_FORCIBLY = findDestroyForcibly();
+
+	/**
+	 * Started worker JVM ready for request.
+	 */
+	private static final class Worker {
+
+		private final Process process; ///< worker process
+		private final DataInputStream in; ///< reply stream
+		private final DataOutputStream out; ///< request stream
+
+		/**
+		 * Start worker JVM and wait until it is ready.
+		 *
+		 * @param command command starting worker
+		 * @throws IOException in case worker cannot be started
+		 */
+		private Worker (List<String> command) throws IOException {
+			this.process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			this.in = new DataInputStream(new BufferedInputStream(this.process.getInputStream()));
+			this.out = new DataOutputStream(new BufferedOutputStream(this.process.getOutputStream()));
+			try {
+				if (this.in.readInt() != WorkerProcess.READY) {
+					throw new IOException("Worker process has not started properly");
+				}
+			} catch (IOException e) {
+				terminate(this.process);
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Reply of worker.
+	 */
+	static final class Reply {
+
+		int status; ///< reply status (see WorkerProcess::OK)
+		String message; ///< error message (if status is not WorkerProcess::OK)
+		byte[] stdout; ///< standard output of student code
+		byte[] stderr; ///< error output of student code
+		List<Document> documents = new ArrayList<Document>(); ///< document arguments modified by student code
+		Object result; ///< result of invoked method (null if it is not string or primitive value)
+	}
+
+	private static WorkerPool instance = null; ///< sole instance
+
+	private final List<String> command; ///< command starting worker JVM
+	private final BlockingQueue<Worker> readyWorkers = new LinkedBlockingQueue<Worker>(); ///< started workers ready for request
+	private final Semaphore freeSlots; ///< number of workers that may be started in advance
+	private volatile IOException startError = null; ///< error of last failed worker start (null if last start succeeded)
+
+	/**
+	 * Private constructor (use WorkerPool::getInstance()).
+	 */
+	private WorkerPool () {
+		this.command = new ArrayList<String>();
+		this.command.add(new File(new File(System.getProperty("java.home"), "bin"), JAVA_BINARY).getPath());
+		this.command.add("-cp");
+		this.command.add(System.getProperty("java.class.path"));
+		for (Map.Entry<Object, Object> property : System.getProperties().entrySet()) {
+			String name = property.getKey().toString();
+			if (name.startsWith("asm.")) {
+				this.command.add("-D" + name + "=" + property.getValue());
+			}
+		}
+		this.command.addAll(Arrays.asList(Utils.splitArguments(Utils.getSetting("workerOptions", "-Xmx256m"))));
+		this.command.add(WorkerProcess.class.getName());
+		this.freeSlots = new Semaphore((int) Math.max(1, Utils.getLongSetting("workerPoolSize", 2)));
+
+		Thread starter = new Thread(new Runnable() {
+			public void run() {
+				WorkerPool.this.keepWorkersReady();
+			}
+		}, "asm-worker-starter");
+		starter.setDaemon(true);
+		starter.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				for (Worker worker : WorkerPool.this.readyWorkers) {
+					terminate(worker.process);
+				}
+			}
+		}, "asm-worker-cleanup"));
+	}
+
+	/**
+	 * Look up Process::destroyForcibly() (not available before Java 8).
+	 *
+	 * @return Method or null if the runtime does not provide it.
+	 */
+	private static Method findDestroyForcibly () {
+		try {
+			return Process.class.getMethod("destroyForcibly");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Kill worker process (forcibly where the runtime supports it).
+	 *
+	 * @param process worker process
+	 */
+	private static void terminate (Process process) {
+		if (DESTROY_FORCIBLY != null) {
+			try {
+				DESTROY_FORCIBLY.invoke(process);
+				return;
+			} catch (Exception e) {
+				// fall back to Process::destroy()
+			}
+		}
+		process.destroy();
+	}
+
+	/**
+	 * Retrieve sole pool instance (starting workers on first call).
+	 *
+	 * @return Worker pool.
+	 */
+	public static synchronized WorkerPool getInstance () {
+		if (instance == null) {
+			instance = new WorkerPool();
+		}
+		return instance;
+	}
+
+	/**
+	 * Start workers whenever there is room in pool (run by background thread).
+	 *
+	 * If worker cannot be started, starting is retried once worker is requested
+	 * (see WorkerPool::acquire()).
+	 */
+	private void keepWorkersReady () {
+		while (true) {
+			try {
+				this.freeSlots.acquire();
+				try {
+					this.readyWorkers.add(new Worker(this.command));
+					this.startError = null;
+				} catch (IOException e) {
+					this.freeSlots.release();
+					this.startError = e;
+					synchronized (this) {
+						this.wait();
+					}
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Take ready worker, or start new one if there is none.
+	 *
+	 * @return Worker ready for request.
+	 * @throws IOException in case worker cannot be started
+	 */
+	private Worker acquire () throws IOException {
+		Worker worker = this.readyWorkers.poll();
+		if (worker != null) {
+			this.freeSlots.release();
+			return worker;
+		}
+		if (this.startError != null) {
+			synchronized (this) {
+				// let background thread retry
+				this.notifyAll();
+			}
+		}
+		return new Worker(this.command);
+	}
+
+	/**
+	 * Invoke method of new instance of student class in worker JVM.
+	 *
+	 * @param classes bytecode of compiled student classes by their binary names
+	 * @param classPath class path folder for classes and resources that were not compiled
+	 * @param className name of class
+	 * @param cpuBudget CPU time budget of student code in milliseconds (0 if unlimited, see Watchdog)
+	 * @param allocationBudget allocation budget of student code in bytes (0 if unlimited)
+	 * @param methodName name of method
+	 * @param args arguments by parameter types (XML documents, strings or primitive values)
+	 * @return Worker reply.
+	 * @throws IOException in case worker fails or arguments cannot be passed to it
+	 * @throws InterruptedException in case current thread is interrupted while waiting for reply
+	 */
+	Reply invoke (Map<String, byte[]> classes, File classPath, String className, long cpuBudget,
+			long allocationBudget, String methodName, Map<Class<?>, Object> args)
+			throws IOException, InterruptedException {
+		Worker worker = this.acquire();
+		try {
+			this.writeHeader(worker.out, WorkerProcess.INVOKE, classes, classPath, className, cpuBudget,
+					allocationBudget);
+			WorkerProcess.writeString(worker.out, methodName);
+			worker.out.writeInt(args.size());
+			for (Map.Entry<Class<?>, Object> arg : args.entrySet()) {
+				WorkerProcess.writeString(worker.out, arg.getKey().getName());
+				WorkerProcess.writeValue(worker.out, arg.getValue());
+			}
+			worker.out.flush();
+			return this.readReply(worker, true);
+		} catch (IOException | InterruptedException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Worker request cannot be processed", e);
+		} finally {
+			terminate(worker.process);
+		}
+	}
+
+	/**
+	 * Parse XML document using student handler class in worker JVM.
+	 *
+	 * @param classes bytecode of compiled student classes by their binary names
+	 * @param classPath class path folder for classes and resources that were not compiled
+	 * @param className name of handler class
+	 * @param cpuBudget CPU time budget of student code in milliseconds (0 if unlimited, see Watchdog)
+	 * @param allocationBudget allocation budget of student code in bytes (0 if unlimited)
+	 * @param xml XML document
+	 * @param systemId system ID of document
+	 * @return Worker reply.
+	 * @throws IOException in case worker fails
+	 * @throws InterruptedException in case current thread is interrupted while waiting for reply
+	 */
+	Reply parse (Map<String, byte[]> classes, File classPath, String className, long cpuBudget,
+			long allocationBudget, byte[] xml, String systemId) throws IOException, InterruptedException {
+		Worker worker = this.acquire();
+		try {
+			this.writeHeader(worker.out, WorkerProcess.PARSE, classes, classPath, className, cpuBudget,
+					allocationBudget);
+			WorkerProcess.writeBytes(worker.out, xml);
+			WorkerProcess.writeString(worker.out, systemId);
+			worker.out.flush();
+			return this.readReply(worker, false);
+		} finally {
+			terminate(worker.process);
+		}
+	}
+
+	/**
+	 * Write common part of request.
+	 *
+	 * @param out request stream
+	 * @param operation requested operation
+	 * @param classes bytecode of compiled student classes by their binary names
+	 * @param classPath class path folder for classes and resources that were not compiled
+	 * @param className name of student class
+	 * @param cpuBudget CPU time budget of student code in milliseconds
+	 * @param allocationBudget allocation budget of student code in bytes
+	 * @throws IOException in case of write error
+	 */
+	private void writeHeader (DataOutputStream out, int operation, Map<String, byte[]> classes, File classPath,
+			String className, long cpuBudget, long allocationBudget) throws IOException {
+		out.writeInt(operation);
+		out.writeLong(cpuBudget);
+		out.writeLong(allocationBudget);
+		WorkerProcess.writeString(out, classPath.getAbsolutePath());
+		out.writeInt(classes.size());
+		for (Map.Entry<String, byte[]> compiledClass : classes.entrySet()) {
+			WorkerProcess.writeString(out, compiledClass.getKey());
+			WorkerProcess.writeBytes(out, compiledClass.getValue());
+		}
+		WorkerProcess.writeString(out, className);
+	}
+
+	/**
+	 * Wait for reply and read it.
+	 *
+	 * Reply is read by separate thread blocked on worker output, so that waiting
+	 * is interruptible (e.g. when test is abandoned). Worker is then terminated
+	 * by caller, which ends the reading thread as well.
+	 *
+	 * @param worker worker processing request
+	 * @param hasResult true if successful reply contains document arguments and result (see WorkerPool::invoke())
+	 * @return Reply.
+	 * @throws IOException in case worker ends without reply or reply cannot be processed
+	 * @throws InterruptedException in case current thread is interrupted while waiting
+	 */
+	private Reply readReply (final Worker worker, final boolean hasResult) throws IOException, InterruptedException {
+		FutureTask<Reply> reading = new FutureTask<Reply>(new Callable<Reply>() {
+			public Reply call () throws Exception {
+				Reply reply = new Reply();
+				try {
+					reply.status = worker.in.readInt();
+				} catch (EOFException e) {
+					throw new IOException("Worker process ended without reply (exit code "
+							+ worker.process.waitFor() + ")");
+				}
+				reply.message = WorkerProcess.readString(worker.in);
+				reply.stdout = WorkerProcess.readBytes(worker.in);
+				reply.stderr = WorkerProcess.readBytes(worker.in);
+				if (hasResult && (reply.status == WorkerProcess.OK)) {
+					int documentCount = worker.in.readInt();
+					for (int i = 0; i < documentCount; ++i) {
+						reply.documents.add(WorkerProcess.parseDocument(WorkerProcess.readBytes(worker.in)));
+					}
+					reply.result = WorkerProcess.readValue(worker.in);
+				}
+				return reply;
+			}
+		});
+		Thread reader = new Thread(reading, "asm-worker-reader");
+		reader.setDaemon(true);
+		reader.start();
+		try {
+			return reading.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Worker reply cannot be processed", e.getCause());
+		}
+	}
+}
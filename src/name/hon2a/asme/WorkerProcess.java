@@ -0,0 +1,465 @@
+package name.hon2a.asme;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import name.hon2a.asm.Utils;
+import org.w3c.dom.Document;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Worker JVM executing single piece of student code (see WorkerPool).
+ *
+ * Worker preloads XML stack (DOM, SAX, transformer) and signals it is ready.
+ * Then it reads single request from standard input, executes it in its own
+ * class loader and writes reply to standard output. Output written by student
+ * code is captured and sent back as part of reply. Worker then terminates,
+ * together with any threads started by student code. Student code runs within
+ * CPU time and allocation budget (see Watchdog) sent as part of request. Thread
+ * exceeding its budget is stopped, as nothing else runs in worker.
+ *
+ * Request:
+ * @code
+ * int operation (WorkerProcess::INVOKE or WorkerProcess::PARSE), long cpuBudget, long allocationBudget
+ * bytes classPath, int classCount, { bytes className, bytes bytecode } * classCount, bytes className
+ * INVOKE: bytes methodName, int argCount, { bytes typeName, byte tag, bytes value } * argCount
+ * PARSE: bytes xml, bytes systemId
+ * @endcode
+ * Reply:
+ * @code
+ * int status, bytes message, bytes stdout, bytes stderr
+ * INVOKE (status WorkerProcess::OK): int documentCount, bytes document * documentCount, bytes result
+ * @endcode
+ * where @c bytes is length-prefixed byte array (strings are encoded in UTF-8)
+ * and arguments and result are XML documents, strings or primitive values
+ * (see WorkerProcess::writeValue()).
+ *
+ * Worker is controlled by student code, which can write forged reply to its
+ * standard output. Values are therefore never deserialized as Java objects
+ * and documents are parsed without resolving external entities.
+ *
+ * @author %hon2a
+ */
+public final class WorkerProcess {
+
+	/**
+	 * Exception carrying reply status.
+	 */
+	private static final class WorkerException extends Exception {
+
+		private static final long serialVersionUID = 1L; ///< serialization version
+
+		private final int status; ///< reply status
+
+		/**
+		 * Default and only constructor.
+		 *
+		 * @param status reply status
+		 * @param cause exception that caused failure
+		 */
+		private WorkerException (int status, Throwable cause) {
+			super(Utils.getMessageTrace(cause, true), cause);
+			this.status = status;
+		}
+	}
+
+	static final int READY = 0x41534d57; ///< marker written once worker is ready for request
+	static final int INVOKE = 1; ///< operation: invoke method of new instance of class
+	static final int PARSE = 2; ///< operation: parse XML document using handler class
+
+	static final int OK = 0; ///< status: request was executed successfully
+	static final int LOAD_ERROR = 1; ///< status: class cannot be loaded or instantiated
+	static final int TYPE_ERROR = 2; ///< status: handler class does not extend DefaultHandler
+	static final int PARSE_ERROR = 3; ///< status: document cannot be parsed using handler
+	static final int INPUT_ERROR = 4; ///< status: request input cannot be read
+	static final int RUN_ERROR = 5; ///< status: student code has thrown exception
+	static final int BUDGET_ERROR = 6; ///< status: student code has exceeded its budget (see Watchdog)
+
+	static final byte TAG_NULL = 0; ///< value tag: null
+	static final byte TAG_DOCUMENT = 1; ///< value tag: XML document
+	static final byte TAG_STRING = 2; ///< value tag: string
+	static final byte TAG_BOOLEAN = 3; ///< value tag: boolean
+	static final byte TAG_CHARACTER = 4; ///< value tag: char
+	static final byte TAG_BYTE = 5; ///< value tag: byte
+	static final byte TAG_SHORT = 6; ///< value tag: short
+	static final byte TAG_INTEGER = 7; ///< value tag: int
+	static final byte TAG_LONG = 8; ///< value tag: long
+	static final byte TAG_FLOAT = 9; ///< value tag: float
+	static final byte TAG_DOUBLE = 10; ///< value tag: double
+
+	private static final String ENCODING = "UTF-8"; ///< encoding of strings in protocol
+
+	/**
+	 * Static class.
+	 */
+	private WorkerProcess () {
+	}
+
+	/**
+	 * Run worker.
+	 *
+	 * @param args unused
+	 */
+	public static void main (String[] args) {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+		ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+		ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+		System.setOut(new PrintStream(stdout, true));
+		System.setErr(new PrintStream(stderr, true));
+		try {
+			Watchdog.getInstance().allowStop();
+			WorkerProcess.warmUp();
+			out.writeInt(READY);
+			out.flush();
+
+			DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+			ByteArrayOutputStream reply = new ByteArrayOutputStream();
+			int status;
+			String message = "";
+			try {
+				status = WorkerProcess.execute(in, new DataOutputStream(reply));
+			} catch (WorkerException e) {
+				status = e.status;
+				message = e.getMessage();
+			} catch (Watchdog.BudgetExceededException e) {
+				status = BUDGET_ERROR;
+				message = e.getMessage();
+			} catch (Throwable e) {
+				status = RUN_ERROR;
+				message = Utils.getMessageTrace(e, true);
+			}
+			System.out.flush();
+			System.err.flush();
+			out.writeInt(status);
+			writeString(out, message);
+			writeBytes(out, stdout.toByteArray());
+			writeBytes(out, stderr.toByteArray());
+			if (status == OK) {
+				reply.writeTo(out);
+			}
+			out.flush();
+		} catch (Throwable e) {
+			// parent reports worker that ended without reply
+		}
+		// do not run shutdown hooks of student code
+		Runtime.getRuntime().halt(0);
+	}
+
+	/**
+	 * Load classes used by student code, so that they are ready before request comes.
+	 *
+	 * @throws Exception in case XML stack cannot be initialized
+	 */
+	private static void warmUp () throws Exception {
+		byte[] xml = "<?xml version=\"1.0\"?><root a=\"1\"><item>text</item><!-- c --></root>".getBytes(ENCODING);
+		Document document = parseDocument(xml);
+		serializeDocument(document);
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.newSAXParser().parse(new ByteArrayInputStream(xml), new DefaultHandler());
+	}
+
+	/**
+	 * Read and execute request.
+	 *
+	 * @param in request input
+	 * @param reply output for operation-specific part of reply
+	 * @return Reply status.
+	 * @throws Exception in case request fails
+	 */
+	private static int execute (DataInputStream in, DataOutputStream reply) throws Exception {
+		int operation = in.readInt();
+		long cpuBudget = in.readLong();
+		long allocationBudget = in.readLong();
+		File classPath = new File(readString(in));
+		Map<String, byte[]> classes = new HashMap<String, byte[]>();
+		int classCount = in.readInt();
+		for (int i = 0; i < classCount; ++i) {
+			classes.put(readString(in), readBytes(in));
+		}
+		final String className = readString(in);
+		final ClassLoader loader = new MemoryClassLoader(classes, classPath, WorkerProcess.class.getClassLoader());
+
+		if (operation == PARSE) {
+			final byte[] xml = readBytes(in);
+			final String systemId = readString(in);
+			Watchdog.getInstance().call(new Callable<Object>() {
+				public Object call () throws Exception {
+					WorkerProcess.parse(loader, className, xml, systemId);
+					return null;
+				}
+			}, cpuBudget, allocationBudget);
+			return OK;
+		}
+
+		String methodName = readString(in);
+		int argCount = in.readInt();
+		final Class<?>[] types = new Class<?>[argCount];
+		final Object[] values = new Object[argCount];
+		List<Document> documents = new ArrayList<Document>();
+		for (int i = 0; i < argCount; ++i) {
+			types[i] = WorkerProcess.resolveType(readString(in), loader);
+			values[i] = readValue(in);
+			if (values[i] instanceof Document) {
+				documents.add((Document) values[i]);
+			}
+		}
+		final Class<?> userClass = loader.loadClass(className);
+		final Method userMethod = userClass.getMethod(methodName, types);
+		Object result = Watchdog.getInstance().call(new Callable<Object>() {
+			public Object call () throws Exception {
+				return userMethod.invoke(userClass.getDeclaredConstructor().newInstance(), values);
+			}
+		}, cpuBudget, allocationBudget);
+		reply.writeInt(documents.size());
+		for (Document document : documents) {
+			writeBytes(reply, serializeDocument(document));
+		}
+		writeValue(reply, isTransferable(result) ? result : null);
+		return OK;
+	}
+
+	/**
+	 * Parse XML document using handler class (the same way as in JavaTest::parseXmlUsingJavaSource()).
+	 *
+	 * @param loader class loader of student classes
+	 * @param className name of handler class
+	 * @param xml XML document
+	 * @param systemId system ID of document
+	 * @throws Exception in case document cannot be parsed
+	 */
+	private static void parse (ClassLoader loader, String className, byte[] xml, String systemId)
+			throws Exception {
+		Object handler;
+		try {
+			handler = loader.loadClass(className).getDeclaredConstructor().newInstance();
+		} catch (Exception e) {
+			throw new WorkerException(LOAD_ERROR, e);
+		}
+		if (!(handler instanceof DefaultHandler)) {
+			throw new WorkerException(TYPE_ERROR, new ClassCastException(handler.getClass().getName()));
+		}
+		SAXParserFactory factory = SAXParserFactory.newInstance();
+		factory.setValidating(false);
+		factory.setNamespaceAware(true);
+		SAXParser parser = factory.newSAXParser();
+		try {
+			parser.parse(new ByteArrayInputStream(xml), (DefaultHandler) handler, systemId);
+		} catch (SAXException e) {
+			throw new WorkerException(PARSE_ERROR, e);
+		} catch (IOException e) {
+			throw new WorkerException(INPUT_ERROR, e);
+		}
+	}
+
+	/**
+	 * Resolve parameter type by its name.
+	 *
+	 * @param typeName name of type (as returned by Class::getName())
+	 * @param loader class loader of student classes
+	 * @return Parameter type.
+	 * @throws ClassNotFoundException in case type cannot be found
+	 */
+	private static Class<?> resolveType (String typeName, ClassLoader loader) throws ClassNotFoundException {
+		Class<?>[] primitives = { boolean.class, byte.class, char.class, short.class, int.class, long.class,
+				float.class, double.class };
+		for (Class<?> primitive : primitives) {
+			if (primitive.getName().equals(typeName)) {
+				return primitive;
+			}
+		}
+		return Class.forName(typeName, false, loader);
+	}
+
+	/**
+	 * Parse XML document (the same way as name.hon2a.asm.Test::loadXmlFile(), but without external entities).
+	 *
+	 * @param xml XML document
+	 * @return Parsed document.
+	 * @throws Exception in case document cannot be parsed
+	 */
+	static Document parseDocument (byte[] xml) throws Exception {
+		DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+		// forged documents must not make grader read its own files
+		factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+		factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+		factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		return factory.newDocumentBuilder().parse(new ByteArrayInputStream(xml));
+	}
+
+	/**
+	 * Serialize XML document.
+	 *
+	 * @param document XML document
+	 * @return Serialized document.
+	 * @throws Exception in case document cannot be serialized
+	 */
+	static byte[] serializeDocument (Document document) throws Exception {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		TransformerFactory.newInstance().newTransformer().transform(new DOMSource(document), new StreamResult(output));
+		return output.toByteArray();
+	}
+
+	/**
+	 * Check whether value can be passed between grader and worker.
+	 *
+	 * @param value value
+	 * @return True if value is null, XML document, string or boxed primitive value.
+	 */
+	static boolean isTransferable (Object value) {
+		return (value == null) || (value instanceof Document) || (value instanceof String)
+				|| (value instanceof Boolean) || (value instanceof Character) || (value instanceof Byte)
+				|| (value instanceof Short) || (value instanceof Integer) || (value instanceof Long)
+				|| (value instanceof Float) || (value instanceof Double);
+	}
+
+	/**
+	 * Write argument or result value.
+	 *
+	 * @param out output stream
+	 * @param value XML document, string, boxed primitive value or null (see WorkerProcess::isTransferable())
+	 * @throws Exception in case value cannot be passed to other side
+	 */
+	static void writeValue (DataOutputStream out, Object value) throws Exception {
+		if (value == null) {
+			out.writeByte(TAG_NULL);
+		} else if (value instanceof Document) {
+			out.writeByte(TAG_DOCUMENT);
+			writeBytes(out, serializeDocument((Document) value));
+		} else if (value instanceof String) {
+			out.writeByte(TAG_STRING);
+			writeString(out, (String) value);
+		} else if (value instanceof Boolean) {
+			out.writeByte(TAG_BOOLEAN);
+			out.writeBoolean((Boolean) value);
+		} else if (value instanceof Character) {
+			out.writeByte(TAG_CHARACTER);
+			out.writeChar((Character) value);
+		} else if (value instanceof Byte) {
+			out.writeByte(TAG_BYTE);
+			out.writeByte((Byte) value);
+		} else if (value instanceof Short) {
+			out.writeByte(TAG_SHORT);
+			out.writeShort((Short) value);
+		} else if (value instanceof Integer) {
+			out.writeByte(TAG_INTEGER);
+			out.writeInt((Integer) value);
+		} else if (value instanceof Long) {
+			out.writeByte(TAG_LONG);
+			out.writeLong((Long) value);
+		} else if (value instanceof Float) {
+			out.writeByte(TAG_FLOAT);
+			out.writeFloat((Float) value);
+		} else if (value instanceof Double) {
+			out.writeByte(TAG_DOUBLE);
+			out.writeDouble((Double) value);
+		} else {
+			throw new IOException("Value of type " + value.getClass().getName() + " cannot be passed to worker JVM");
+		}
+	}
+
+	/**
+	 * Read value written by WorkerProcess::writeValue().
+	 *
+	 * @param in input stream
+	 * @return Value.
+	 * @throws Exception in case value cannot be read
+	 */
+	static Object readValue (DataInputStream in) throws Exception {
+		byte tag = in.readByte();
+		switch (tag) {
+			case TAG_NULL:
+				return null;
+			case TAG_DOCUMENT:
+				return parseDocument(readBytes(in));
+			case TAG_STRING:
+				return readString(in);
+			case TAG_BOOLEAN:
+				return in.readBoolean();
+			case TAG_CHARACTER:
+				return in.readChar();
+			case TAG_BYTE:
+				return in.readByte();
+			case TAG_SHORT:
+				return in.readShort();
+			case TAG_INTEGER:
+				return in.readInt();
+			case TAG_LONG:
+				return in.readLong();
+			case TAG_FLOAT:
+				return in.readFloat();
+			case TAG_DOUBLE:
+				return in.readDouble();
+			default:
+				throw new IOException("Unknown value tag " + tag);
+		}
+	}
+
+	/**
+	 * Write length-prefixed byte array.
+	 *
+	 * @param out output stream
+	 * @param bytes data
+	 * @throws IOException in case of write error
+	 */
+	static void writeBytes (DataOutputStream out, byte[] bytes) throws IOException {
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Read length-prefixed byte array.
+	 *
+	 * @param in input stream
+	 * @return Data.
+	 * @throws IOException in case of read error
+	 */
+	static byte[] readBytes (DataInputStream in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Write length-prefixed string.
+	 *
+	 * @param out output stream
+	 * @param str string
+	 * @throws IOException in case of write error
+	 */
+	static void writeString (DataOutputStream out, String str) throws IOException {
+		writeBytes(out, str.getBytes(ENCODING));
+	}
+
+	/**
+	 * Read length-prefixed string.
+	 *
+	 * @param in input stream
+	 * @return String.
+	 * @throws IOException in case of read error
+	 */
+	static String readString (DataInputStream in) throws IOException {
+		return new String(readBytes(in), ENCODING);
+	}
+}
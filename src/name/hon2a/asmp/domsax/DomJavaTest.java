@@ -1,5 +1,6 @@
 package name.hon2a.asmp.domsax;
 
+import name.hon2a.asm.OutputCapture;
 import name.hon2a.asm.TestCodeException;
 import name.hon2a.asm.TestDataException;
 import name.hon2a.asm.TestException;
@@ -14,7 +15,6 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -44,6 +44,16 @@ public class DomJavaTest extends JavaTest {
 		super(sources, params, outputFolder);
 	}
 
+	/**
+	 * Test depends only on its sources and parameters, so it can be memoized.
+	 *
+	 * @return Fingerprint of test sources and parameters.
+	 */
+	@Override
+	public String getFingerprint () {
+		return this.fingerprintInputs();
+	}
+
 	/**
 	 * Set goals of this test.
 	 *
@@ -84,17 +94,14 @@ public class DomJavaTest extends JavaTest {
 		Map<Class, Object> transformArgs = new HashMap<Class, Object>();
 		transformArgs.put(Document.class, xmlDocument);
 
-        PrintStream systemErrorStream = System.err;
-        PrintStream systemOutputStream = System.out;
-        System.setErr(new PrintStream(new NullOutputStream()));
-        System.setOut(new PrintStream(new NullOutputStream()));
-
-        // Here, the user's source code is run
-		this.runJavaSource(javaSourcesFolder, this.getParam(DomJavaTest.paramDomScript),
-				domScriptMainMethod, transformArgs);
-
-        System.setOut(systemOutputStream);
-        System.setErr(systemErrorStream);
+		// output of user's source code is discarded
+		OutputCapture capture = OutputCapture.start(null, null);
+		try {
+			this.runJavaSource(javaSourcesFolder, this.getParam(DomJavaTest.paramDomScript),
+					domScriptMainMethod, transformArgs);
+		} finally {
+			capture.stop();
+		}
 
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
 		DOMSource source = new DOMSource(xmlDocument);
@@ -2,8 +2,13 @@ package name.hon2a.asmp.domsax;
 
 import name.hon2a.asm.Plugin;
 import name.hon2a.asm.PluginException;
+import name.hon2a.asm.Prerequisite;
 import name.hon2a.asm.TesterPlugin;
 import name.hon2a.asm.Utils;
+import name.hon2a.asm.WellFormedXml;
+
+import java.io.File;
+import java.io.IOException;
 
 /**
  * Assignment Manager plugin for automating DOM-SAX assignment correction.
@@ -27,9 +32,10 @@ public class Main extends TesterPlugin {
 	 *
 	 * @param args command line arguments
 	 */
-	public static void main (String[] args) {
+	public static void main (String[] args) throws IOException {
 		Plugin self = new Main();
-		System.out.println(self.run(args));
+		self.run(args, System.out);
+		System.out.println();
 	}
 
 	/**
@@ -43,8 +49,10 @@ public class Main extends TesterPlugin {
 	protected void setUp(String[] params) throws PluginException {
 
 		String sourceXmlPath = this.getSourcePath("data.xml");
+		// both tests parse the document, so neither needs to compile sources if it is broken
+		Prerequisite wellFormedXml = new WellFormedXml(new File(sourceXmlPath), this.getArtifacts());
 
-		this.addTestAsCriterion(new DomJavaTest(
+		DomJavaTest domTest = new DomJavaTest(
 			Utils.createStringMap(
 				DomJavaTest.sourceJava, this.getSourcePath("dom"),
 				DomJavaTest.sourceXml, sourceXmlPath
@@ -54,9 +62,11 @@ public class Main extends TesterPlugin {
 				DomJavaTest.paramOutputFile, "data.transformed.xml"
 			),
 			this.getOutputFile(".")
-		), "XML DOM transformation using supplied script");
+		);
+		domTest.addPrerequisite(wellFormedXml);
+		this.addTestAsCriterion(domTest, "XML DOM transformation using supplied script");
 
-		this.addTestAsCriterion(new SaxJavaTest(
+		SaxJavaTest saxTest = new SaxJavaTest(
 			Utils.createStringMap(
 				SaxJavaTest.sourceJava, this.getSourcePath("sax"),
 				SaxJavaTest.sourceXml, sourceXmlPath
@@ -66,7 +76,9 @@ public class Main extends TesterPlugin {
 				SaxJavaTest.paramOutputFile, "sax.output.txt"
 			),
 			this.getOutputFile(".")
-		), "XML SAX parsing using supplied handler");
+		);
+		saxTest.addPrerequisite(wellFormedXml);
+		this.addTestAsCriterion(saxTest, "XML SAX parsing using supplied handler");
 	}
 
 }
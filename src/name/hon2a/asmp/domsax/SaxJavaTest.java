@@ -1,14 +1,9 @@
 package name.hon2a.asmp.domsax;
 
-import name.hon2a.asm.TestCodeException;
-import name.hon2a.asm.TestDataException;
+import name.hon2a.asm.OutputCapture;
 import name.hon2a.asm.TestException;
 import name.hon2a.asme.JavaTest;
-import org.xml.sax.SAXException;
-import org.xml.sax.helpers.DefaultHandler;
 
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.io.*;
 import java.util.Map;
 
@@ -35,6 +30,16 @@ public class SaxJavaTest extends JavaTest {
 		super(sources, params, outputFolder);
 	}
 
+	/**
+	 * Test depends only on its sources and parameters, so it can be memoized.
+	 *
+	 * @return Fingerprint of test sources and parameters.
+	 */
+	@Override
+	public String getFingerprint () {
+		return this.fingerprintInputs();
+	}
+
 	/**
 	 * Set goals of this test.
 	 *
@@ -62,47 +67,20 @@ public class SaxJavaTest extends JavaTest {
 	protected void doTest () throws TestException {
 		this.requireSources(SaxJavaTest.sourceJava, SaxJavaTest.sourceXml);
 		this.requireParams(SaxJavaTest.paramSaxScript, SaxJavaTest.paramOutputFile);
-		PrintStream systemOutStream = System.out;
-		PrintStream systemErrStream = System.err;
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();
-		System.setOut(new PrintStream(baos));
-		System.setErr(new PrintStream(new NullOutputStream()));
-
-		File sourcePath = this.getSourceFile(SaxJavaTest.sourceJava);
-		this.compileJavaSources(sourcePath);
-
-		DefaultHandler userHandler;
-		Object obj = this.loadJavaSource(sourcePath, this.getParam(SaxJavaTest.paramSaxScript));
+		// standard output of user's handler is test output, error output is discarded
+		OutputCapture capture = OutputCapture.start(baos, null);
 		try {
-			userHandler = (DefaultHandler) obj;
-		} catch (ClassCastException e) {
-			throw new TestDataException("User handler does not extend org.xml.sax.helpers.DefaultHandler.", e);
-		}
+			File sourcePath = this.getSourceFile(SaxJavaTest.sourceJava);
+			this.compileJavaSources(sourcePath);
 
-		SAXParser saxParser;
-		SAXParserFactory factory = SAXParserFactory.newInstance();
-		factory.setValidating(false);
-		factory.setNamespaceAware(true);
-		try {
-			saxParser = factory.newSAXParser();
-		} catch (Exception e) {
-			throw new TestCodeException("Cannot create SAX parser", e);
-		}
+			File inputFile = this.getSourceFile(SaxJavaTest.sourceXml);
+			String xmlInputString = this.loadTextFile(inputFile);
 
-		File inputFile = this.getSourceFile(SaxJavaTest.sourceXml);
-		String xmlInputString = this.loadTextFile(inputFile);
-
-
-		try {
-			saxParser.parse(new ByteArrayInputStream(xmlInputString.getBytes()), userHandler,
-					inputFile.getAbsolutePath());
-		} catch (SAXException e) {
-			throw new TestDataException("Cannot parse xml using supplied handler", e);
-		} catch (IOException e) {
-			throw new TestCodeException("Error while reading input", e);
+			this.parseXmlUsingJavaSource(sourcePath, this.getParam(SaxJavaTest.paramSaxScript),
+					xmlInputString.getBytes(), inputFile.getAbsolutePath());
 		} finally {
-			System.setOut(systemOutStream);
-            System.setErr(systemErrStream);
+			capture.stop();
 		}
 
 		this.saveTextFile(this.getParam(SaxJavaTest.paramOutputFile),
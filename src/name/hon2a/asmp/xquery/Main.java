@@ -10,6 +10,8 @@ import name.hon2a.asm.PluginException;
 import name.hon2a.asm.SingleTestPlugin;
 import name.hon2a.asm.Utils;
 
+import java.io.IOException;
+
 /**
  *
  * @author hon2a
@@ -21,9 +23,10 @@ public class Main extends SingleTestPlugin {
 	 *
 	 * @param args command line arguments
 	 */
-	public static void main (String[] args) {
+	public static void main (String[] args) throws IOException {
 		Plugin self = new Main();
-		System.out.println(self.run(args));
+		self.run(args, System.out);
+		System.out.println();
 	}
 
 	@Override